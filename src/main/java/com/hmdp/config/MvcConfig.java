@@ -1,7 +1,9 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -20,6 +22,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -31,8 +36,14 @@ public class MvcConfig implements WebMvcConfigurer {
                   "/shop/**",
                   "/shop-type/**",
                   "/upload/**",
-                  "/voucher/**"
+                  // 秒杀状态对账（/voucher/seckill/reconcile/**）需要登录
+                  "/voucher",
+                  "/voucher/seckill",
+                  "/voucher/list/**"
                 ).order(1);
+        //秒杀限流拦截器
+        registry.addInterceptor(new RateLimitInterceptor(seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/**").order(2);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
     }
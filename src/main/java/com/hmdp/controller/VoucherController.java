@@ -7,6 +7,7 @@ import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.Map;
 
 /**
  * <p>
@@ -45,6 +46,32 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 对比未结束秒杀券在Redis与MySQL中的状态
+     * @param rebuild 是否补齐Redis中缺失的库存和已购用户
+     * @return 对比结果
+     */
+    @PostMapping("seckill/reconcile")
+    public Result reconcileSeckillVouchers(@RequestParam(value = "rebuild", defaultValue = "false") Boolean rebuild) {
+        return Result.ok(voucherService.reconcileSeckillVouchers(rebuild));
+    }
+
+    /**
+     * 对比单个秒杀券在Redis与MySQL中的状态
+     * @param voucherId 优惠券id
+     * @param rebuild 是否补齐Redis中缺失的库存和已购用户
+     * @return 对比结果
+     */
+    @PostMapping("seckill/reconcile/{id}")
+    public Result reconcileSeckillVoucher(@PathVariable("id") Long voucherId,
+                                          @RequestParam(value = "rebuild", defaultValue = "false") Boolean rebuild) {
+        Map<String, Object> report = voucherService.reconcileSeckillVoucher(voucherId, rebuild);
+        if (report == null) {
+            return Result.fail("秒杀券不存在!");
+        }
+        return Result.ok(report);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
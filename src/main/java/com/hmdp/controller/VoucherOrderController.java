@@ -5,12 +5,15 @@ import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -31,4 +34,24 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVocher(voucherId);
     }
+
+    @PostMapping("seckill/basket")
+    public Result seckillBasket(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillBasket(voucherIds);
+    }
+
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    @PostMapping("queue/{id}")
+    public Result enterWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.enterWaitingRoom(voucherId);
+    }
+
+    @GetMapping("queue/{id}")
+    public Result queryWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queryWaitingRoom(voucherId);
+    }
 }
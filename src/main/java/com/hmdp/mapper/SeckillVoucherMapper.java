@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
 /**
  * <p>
@@ -13,4 +14,19 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 一次性扣减多份库存，库存不足时不更新
+     * @param voucherId 优惠券id
+     * @param count 扣减数量
+     * @return 更新行数
+     */
+    int decreaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 归还库存
+     * @param voucherId 优惠券id
+     * @param count 归还数量
+     * @return 更新行数
+     */
+    int increaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
 }
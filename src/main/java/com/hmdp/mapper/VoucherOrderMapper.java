@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 批量保存订单，一条多行INSERT IGNORE，违反 (user_id, voucher_id) 唯一索引的重复订单被忽略
+     * @param orders 订单列表
+     * @return 实际插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
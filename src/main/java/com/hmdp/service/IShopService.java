@@ -16,5 +16,12 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    /**
+     * 新增商铺，并加入商铺id布隆过滤器
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,46 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVocher(Long voucherId);
 
+    /**
+     * 一次秒杀多个优惠券，各优惠券独立判断，只执行一次秒杀脚本
+     * @param voucherIds 优惠券id
+     * @return 每个优惠券的结果：成功时为订单id，失败时为原因
+     */
+    Result seckillBasket(List<Long> voucherIds);
+
+    /**
+     * 领取秒杀排队号
+     * @param voucherId 优惠券id
+     * @return 排队状态
+     */
+    Result enterWaitingRoom(Long voucherId);
+
+    /**
+     * 查询排队状态：是否已放行，未放行时返回排队位置
+     * @param voucherId 优惠券id
+     * @return 排队状态
+     */
+    Result queryWaitingRoom(Long voucherId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 取消其中仍未支付的订单并归还数据库库存，可重复调用。已取消的订单保留，用户不能再次购买同一优惠券
+     * @param orderIds 订单id
+     * @return 订单当前状态（本次取消的订单状态为已取消）
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    /**
+     * 查询秒杀订单处理状态，只读Redis
+     * @param orderId 订单id
+     * @return 排队中/已创建/失败及原因
+     */
+    Result queryOrderStatus(Long orderId);
+
+    /**
+     * 批量创建订单：一条多行INSERT，每个优惠券聚合扣减一次库存
+     * @param voucherOrders 同一批次的订单
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,4 +21,30 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    /**
+     * 预热即将开始的秒杀券库存与起止时间到Redis
+     */
+    void preloadSeckillVouchers();
+
+    /**
+     * 保存秒杀库存到Redis
+     * @param overwrite false时仅在库存不存在时写入
+     * @return 是否写入
+     */
+    boolean saveSeckillStock(Long voucherId, int stock, boolean overwrite);
+
+    /**
+     * 对比未结束秒杀券在Redis与MySQL中的库存和已购用户
+     * @param rebuild 是否补齐Redis中缺失的状态
+     * @return 每个秒杀券的对比结果
+     */
+    List<Map<String, Object>> reconcileSeckillVouchers(boolean rebuild);
+
+    /**
+     * 对比单个秒杀券在Redis与MySQL中的库存和已购用户
+     * @param rebuild 是否补齐Redis中缺失的状态
+     * @return 对比结果，秒杀券不存在时为null
+     */
+    Map<String, Object> reconcileSeckillVoucher(Long voucherId, boolean rebuild);
+
 }
@@ -8,19 +8,37 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilters;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -32,6 +50,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 珠代
  * @since 2022-6-20
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -41,8 +60,43 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
+    private static final int BLOOM_LOAD_PAGE_SIZE = 5000;
+
+    private static final int CACHE_WARM_PAGE_SIZE = 1000;
+
+    /**
+     * 启动时预热店铺缓存
+     */
+    @Value("${cache.warm.enabled:true}")
+    private boolean cacheWarmEnabled;
+
+    /**
+     * 大于0时只预热访问量最高的N个店铺，没有访问记录时按id预热前N个；0表示预热全部店铺
+     */
+    @Value("${cache.warm.top-n:0}")
+    private int cacheWarmTopN;
+
+    /**
+     * 预热时各店铺逻辑过期时间的随机增量上限（秒），同一批预热的店铺不会在同一时刻过期
+     */
+    @Value("${cache.warm.expire-jitter-seconds:20}")
+    private long cacheWarmExpireJitter;
+
+    /**
+     * 本节点各店铺的访问次数，定时汇总到 cache:shop:hits。
+     * 只记录查询到的店铺，条目数不超过店铺数；条目不移除，避免移除时丢失并发的计数
+     */
+    private final Map<Long, LongAdder> shopHits = new ConcurrentHashMap<>();
+
     @Override
     public Result queryById(Long id) {
+        // 布隆过滤器判断一定不存在的店铺，不再访问Redis和数据库
+        if (!bloomFilters.mightContain(BLOOM_SHOP, id)) {
+            return Result.fail("店铺不存在!");
+        }
         //缓存穿透
         //*id2 -> getById(id2) -> this::getById
 //        Shop shop = cacheClient
@@ -53,10 +107,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //         .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //逻辑过期解决缓存击穿
-        Shop shop = cacheClient.queryWithLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
+        Shop shop = cacheClient.queryWithLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_LOGIC_TTL, TimeUnit.SECONDS);
         if (shop == null) {
             return Result.fail("店铺不存在!");
         }
+        // 记录访问次数，定时汇总到Redis，用于启动时预热访问量最高的店铺
+        if (isHitsRecorded()) {
+            shopHits.computeIfAbsent(id, k -> new LongAdder()).increment();
+        }
 
         return Result.ok(shop);
 
@@ -189,6 +247,155 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        try {
+            bloomFilters.put(BLOOM_SHOP, shop.getId());
+        } catch (RuntimeException e) {
+            // 店铺已保存，不因过滤器失败而报错；过滤器下次重建之前，该店铺的查询会被过滤器拒绝
+            log.error("店铺id写入布隆过滤器失败, id={}", shop.getId(), e);
+        }
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    /**
+     * 启动时注册店铺布隆过滤器，之后由过滤器定时重建
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadBloomFilter() {
+        bloomFilters.register(BLOOM_SHOP, this::loadShopIds);
+    }
+
+    /**
+     * 按id游标分页读取全部店铺id
+     */
+    private long loadShopIds(Consumer<Collection<?>> sink) {
+        long cursor = 0;
+        long count = 0;
+        while (true) {
+            List<Object> ids = listObjs(new QueryWrapper<Shop>().select("id")
+                    .gt("id", cursor).orderByAsc("id").last("LIMIT " + BLOOM_LOAD_PAGE_SIZE));
+            if (ids.isEmpty()) {
+                break;
+            }
+            sink.accept(ids);
+            count += ids.size();
+            cursor = Long.parseLong(ids.get(ids.size() - 1).toString());
+            if (ids.size() < BLOOM_LOAD_PAGE_SIZE) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 启动时把店铺以逻辑过期的形式批量写入Redis，每页一次管道写入
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmCache() {
+        if (!cacheWarmEnabled) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            long count = 0;
+            List<Long> hotIds = hotShopIds();
+            if (!hotIds.isEmpty()) {
+                for (int i = 0; i < hotIds.size(); i += CACHE_WARM_PAGE_SIZE) {
+                    List<Shop> shops = listByIds(hotIds.subList(i, Math.min(hotIds.size(), i + CACHE_WARM_PAGE_SIZE)));
+                    count += warm(shops);
+                }
+            } else {
+                long cursor = 0;
+                int limit = cacheWarmTopN > 0 ? Math.min(cacheWarmTopN, CACHE_WARM_PAGE_SIZE) : CACHE_WARM_PAGE_SIZE;
+                while (true) {
+                    List<Shop> shops = query().gt("id", cursor).orderByAsc("id").last("LIMIT " + limit).list();
+                    if (shops.isEmpty()) {
+                        break;
+                    }
+                    count += warm(shops);
+                    cursor = shops.get(shops.size() - 1).getId();
+                    if (shops.size() < limit || (cacheWarmTopN > 0 && count >= cacheWarmTopN)) {
+                        break;
+                    }
+                    limit = cacheWarmTopN > 0 ? (int) Math.min(cacheWarmTopN - count, CACHE_WARM_PAGE_SIZE) : limit;
+                }
+            }
+            log.info("店铺缓存预热完成, {} 个店铺, 耗时 {} ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            // 预热失败不影响启动，读请求会冷加载
+            log.error("店铺缓存预热异常", e);
+        }
+    }
+
+    private int warm(List<Shop> shops) {
+        Map<String, Shop> values = new HashMap<>(shops.size() * 2);
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setWithLogicExpireBatch(values, CACHE_SHOP_LOGIC_TTL, cacheWarmExpireJitter, TimeUnit.SECONDS);
+        return shops.size();
+    }
+
+    /**
+     * @return 访问量最高的N个店铺id，未配置top-n或没有访问记录时为空
+     */
+    private List<Long> hotShopIds() {
+        List<Long> ids = new ArrayList<>();
+        if (cacheWarmTopN <= 0) {
+            return ids;
+        }
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(CACHE_SHOP_HITS_KEY, 0, cacheWarmTopN - 1);
+        if (members != null) {
+            for (String member : members) {
+                ids.add(Long.valueOf(member));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 只有按访问量预热时才需要统计访问次数
+     */
+    private boolean isHitsRecorded() {
+        return cacheWarmEnabled && cacheWarmTopN > 0;
+    }
+
+    /**
+     * 把本节点的店铺访问次数汇总到Redis
+     */
+    @Scheduled(fixedDelayString = "${cache.warm.hits-flush-ms:60000}")
+    public void flushShopHits() {
+        if (!isHitsRecorded() || shopHits.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> hits = new HashMap<>();
+        for (Map.Entry<Long, LongAdder> entry : shopHits.entrySet()) {
+            long n = entry.getValue().sumThenReset();
+            if (n > 0) {
+                hits.put(entry.getKey(), n);
+            }
+        }
+        if (hits.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Map.Entry<Long, Long> entry : hits.entrySet()) {
+                    stringConnection.zIncrBy(CACHE_SHOP_HITS_KEY, entry.getValue(), entry.getKey().toString());
+                }
+                stringConnection.expire(CACHE_SHOP_HITS_KEY, CACHE_SHOP_HITS_TTL);
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("汇总店铺访问次数异常", e);
+        }
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -198,8 +405,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1. 更新数据库
         updateById(shop);
-        // 2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2. 删除缓存，并通知所有节点清除本地缓存
+        cacheClient.invalidate(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
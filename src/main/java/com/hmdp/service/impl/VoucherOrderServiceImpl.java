@@ -1,36 +1,65 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderMessageCodec;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SegmentedStock;
+import com.hmdp.utils.SoldOutCache;
+import com.hmdp.utils.UnpaidOrderCanceller;
+import com.hmdp.utils.StockLease;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderStatus;
+import com.hmdp.utils.WaitingRoom;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.RedisSystemException;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_UNPAID;
 
 /**
  * <p>
@@ -54,47 +83,149 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    @Resource
+    private WaitingRoom waitingRoom;
+
+    @Resource
+    private StockLease stockLease;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private VoucherOrderStatus voucherOrderStatus;
+
+    @Lazy
+    @Resource
+    private UnpaidOrderCanceller unpaidOrderCanceller;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    /**
+     * 一次最多秒杀的优惠券数量
+     */
+    @Value("${seckill.basket.max-items:10}")
+    private int basketMaxItems;
+
+    /**
+     * 单券秒杀与批量秒杀共用的脚本，返回每个优惠券的结果码
+     */
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
 
-    private final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 每次从stream.orders中批量拉取的最大消息数
+     */
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 凑批的最长等待时间，超过后不足一批也立即落库
+     */
+    @Value("${seckill.order.linger-ms:50}")
+    private long lingerMillis;
+
+    /**
+     * 用户id不超过该值时，一人一单改用位图 seckill:buyers:<voucherId> 记录（offset为用户id），
+     * 超过该值的稀疏id仍写入集合 seckill:order<voucherId>，0表示只使用集合
+     */
+    @Value("${seckill.dedup.bitmap-max-user-id:0}")
+    private long bitmapMaxUserId;
+
+    /**
+     * 落库吞吐统计：窗口内已落库订单数及窗口起点
+     */
+    private final LongAdder drainedCount = new LongAdder();
+    private final AtomicLong drainWindowStart = new AtomicLong(System.currentTimeMillis());
+    private static final long DRAIN_REPORT_INTERVAL = 10000L;
+
+    /**
+     * 本节点的订单消费线程数，每个线程是消费者组中一个独立的消费者
+     */
+    @Value("${seckill.order.consumer-threads:4}")
+    private int consumerThreads;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private ExecutorService SECKILL_ORDER_EXECUTOR;
 
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 1.确保stream和消费者组存在
+        createConsumerGroupIfAbsent();
+        // 2.按 主机名-端口-序号 生成本节点唯一且重启后不变的消费者名称，重启后可继续处理自己的pending-list
+        String nodeName = NetUtil.getLocalHostName() + "-" + serverPort;
+        SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(consumerThreads);
+        for (int i = 0; i < consumerThreads; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(nodeName + "-" + i));
+        }
+        log.info("订单消费者已启动: group={}, consumers={}-[0,{})", SECKILL_ORDER_GROUP, nodeName, consumerThreads);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+    }
+
+    private void createConsumerGroupIfAbsent() {
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(SECKILL_ORDER_STREAM, ReadOffset.from("0"), SECKILL_ORDER_GROUP);
+        } catch (RedisSystemException e) {
+            // 组已存在
+            if (e.getCause() == null || !StrUtil.contains(e.getCause().getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
     }
+
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        String queueName = SECKILL_ORDER_STREAM;
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        }
+
         @Override
         public void run() {
-            while (true){
+            while (!Thread.currentThread().isInterrupted()){
                 try {
-                    //1。获取队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    //1。批量获取队列中的订单信息
+                    List<MapRecord<String, Object, Object>> list = readBatch();
                     //2. 判断消息是否获取成功
-                    if (list == null || list.isEmpty()){
+                    if (list.isEmpty()){
                         // 如果获取失败，就进行下一次循环
                         continue;
                     }
                     // 3. 解析消息中的订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4. 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 5. ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+                    RecordId[] recordIds = new RecordId[list.size()];
+                    for (int i = 0; i < list.size(); i++) {
+                        MapRecord<String, Object, Object> record = list.get(i);
+                        voucherOrders.add(OrderMessageCodec.decode(record.getValue()));
+                        recordIds[i] = record.getId();
+                    }
+                    // 4. 批量创建订单（单个事务）
+                    seckillMetrics.persistTimer().record(() -> proxy.createVoucherOrders(voucherOrders));
+                    // 5. 事务提交后一次性ACK整批消息
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, recordIds);
+                    reportDrained(list.size());
                 } catch (Exception e) {
                     log.error("处理订单异常",e);
                     handlePendingList();
@@ -103,37 +234,77 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
         }
 
+        /**
+         * 凑批读取：首次阻塞等待消息，之后在linger时间内继续读取，直到凑满batchSize
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if (list == null || list.isEmpty()) {
+                return batch;
+            }
+            batch.addAll(list);
+            long deadline = System.currentTimeMillis() + lingerMillis;
+            while (batch.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                // block(0)表示永久阻塞，剩余时间不足1ms时直接提交
+                if (remaining <= 0) {
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        /**
+         * 从头到尾遍历一遍自己的pending-list，处理失败的消息直接跳过，
+         * 留给PendingOrderReclaimer在超时后重试或转入死信队列，不再原地重试阻塞主循环
+         */
         private void handlePendingList() {
-            while (true){
+            String lastId = "0";
+            while (!Thread.currentThread().isInterrupted()){
+                //1。获取pending-list队列中lastId之后的订单信息
+                List<MapRecord<String, Object, Object>> list;
                 try {
-                    //1。获取pending-list队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(queueName, ReadOffset.from(lastId))
                     );
-                    //2. 判断消息是否获取成功
-                    if (list == null || list.isEmpty()){
-                        // 如果获取失败，说明pending-list没有异常信息，结束循环
-                        break;
-                    }
-                    // 3. 解析消息中的订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4. 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 5. ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
                 } catch (Exception e) {
-                    log.error("处理pending-list订单异常",e);
+                    log.error("读取pending-list异常",e);
+                    return;
+                }
+                //2. 判断消息是否获取成功
+                if (list == null || list.isEmpty()){
+                    // 如果获取失败，说明pending-list已经遍历完，结束循环
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : list) {
+                    lastId = record.getId().getValue();
                     try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        // 3. 解析消息中的订单
+                        VoucherOrder voucherOrder = OrderMessageCodec.decode(record.getValue());
+                        // 4. 创建订单
+                        handleVoucherOrder(voucherOrder);
+                        // 5. ACK确认
+                        stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, record.getId());
+                    } catch (Exception e) {
+                        log.error("处理pending-list订单异常, id={}", lastId, e);
                     }
                 }
-
             }
         }
         /*private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
@@ -155,55 +326,219 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 重复下单由数据库唯一索引拒绝，不再需要按用户加锁
+        proxy.createVoucherOrder(voucherOrder);
+    }
 
-        // 1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2. 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 3. 获取锁
-        boolean isLock = lock.tryLock();
-        // 4. 判断是否锁获取成功
-        if (!isLock) {
-            //获取锁失败，返回错误
-            log.error("不允许重复下单");
+
+    /**
+     * 代理对象（事务），消费线程在启动时即开始工作，不能依赖请求线程中的AopContext
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    /**
+     * 统计落库吞吐，每个统计窗口输出一次 单/秒
+     */
+    private void reportDrained(int count) {
+        seckillMetrics.drained(count);
+        drainedCount.add(count);
+        long now = System.currentTimeMillis();
+        long windowStart = drainWindowStart.get();
+        long elapsed = now - windowStart;
+        // 多个消费线程同时到达窗口末尾时，只有CAS成功的线程重置计数并输出
+        if (elapsed < DRAIN_REPORT_INTERVAL || !drainWindowStart.compareAndSet(windowStart, now)) {
             return;
         }
-        //获取代理对象（事务）
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
-
+        long drained = drainedCount.sumThenReset();
+        log.info("订单落库吞吐: {} 单/秒 (窗口 {} ms 共 {} 单)", drained * 1000 / elapsed, elapsed, drained);
     }
 
-    private IVoucherOrderService proxy;
-
     @Override
     public Result seckillVocher(Long voucherId) {
+        // 0.本节点已知售罄，直接拒绝，不再访问Redis
+        if (soldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足!");
+        }
+        // 0.1.租用库存模式：先在本节点预扣库存，其他节点可能仍有库存，不广播售罄
+        boolean reserved = stockLease.isEnabled();
+        if (reserved && !stockLease.tryAcquire(voucherId)) {
+            return Result.fail("库存不足!");
+        }
         // 获取用户和订单id
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = seckillMetrics.idTimer().record(() -> redisIdWorker.nextId("order"));
         // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        List<?> results = seckillMetrics.scriptTimer().record(() -> executeSeckillScript(
+                userId, Collections.singletonList(voucherId), new long[]{orderId}, reserved));
         // 2.判断结果为0
-        int r = result.intValue();
+        int r = ((Number) results.get(0)).intValue();
+        seckillMetrics.result(r);
         if (r != 0){
             // 2.1 不为0，没有购买资格
-            return Result.fail(r == 1 ? "库存不足!" : "不能重复下单");
+            if (reserved) {
+                stockLease.release(voucherId);
+            } else if (r == 1) {
+                soldOutCache.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
 
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         // 3.返回订单id
         return Result.ok(orderId);
     }
+    @Override
+    public Result seckillBasket(List<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("请选择优惠券!");
+        }
+        List<Long> items = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (items.size() > basketMaxItems) {
+            return Result.fail("一次最多秒杀" + basketMaxItems + "个优惠券!");
+        }
+        Long userId = UserHolder.getUser().getId();
+        boolean leased = stockLease.isEnabled();
+        // 1.本节点预检：售罄、限流、租用库存预扣，未通过的不再进入脚本
+        int[] codes = new int[items.size()];
+        List<Integer> unsold = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            if (soldOutCache.isSoldOut(items.get(i))) {
+                codes[i] = 1;
+            } else {
+                unsold.add(i);
+            }
+        }
+        // 1.1.所有优惠券的限流令牌一次扣减
+        List<Long> unsoldIds = new ArrayList<>(unsold.size());
+        for (int i : unsold) {
+            unsoldIds.add(items.get(i));
+        }
+        boolean permitted = seckillRateLimiter.tryAcquire(unsoldIds, userId);
+        List<Integer> candidates = new ArrayList<>(unsold.size());
+        for (int i : unsold) {
+            if (!permitted) {
+                codes[i] = 6;
+            } else if (leased && !stockLease.tryAcquire(items.get(i))) {
+                codes[i] = 1;
+            } else {
+                candidates.add(i);
+            }
+        }
+        // 2.一次生成所有订单id，一次执行脚本
+        long[] orderIds = seckillMetrics.idTimer().record(() -> redisIdWorker.nextIds("order", candidates.size()));
+        long[] itemOrderIds = new long[items.size()];
+        if (!candidates.isEmpty()) {
+            List<Long> candidateIds = new ArrayList<>(candidates.size());
+            for (int i : candidates) {
+                candidateIds.add(items.get(i));
+            }
+            List<?> scriptResults = seckillMetrics.basketScriptTimer().record(() ->
+                    executeSeckillScript(userId, candidateIds, orderIds, leased));
+            for (int j = 0; j < candidates.size(); j++) {
+                int i = candidates.get(j);
+                itemOrderIds[i] = orderIds[j];
+                codes[i] = ((Number) scriptResults.get(j)).intValue();
+                seckillMetrics.result(codes[i]);
+                if (codes[i] != 0) {
+                    if (leased) {
+                        stockLease.release(items.get(i));
+                    } else if (codes[i] == 1) {
+                        soldOutCache.markSoldOut(items.get(i));
+                    }
+                }
+            }
+        }
+        // 3.逐项返回结果
+        List<Map<String, Object>> results = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("voucherId", items.get(i));
+            result.put("success", codes[i] == 0);
+            if (codes[i] == 0) {
+                result.put("orderId", itemOrderIds[i]);
+            } else {
+                result.put("message", seckillFailMessage(codes[i]));
+            }
+            results.add(result);
+        }
+        return Result.ok(results);
+    }
+
+    /**
+     * 执行seckill.lua，为同一用户秒杀一个或多个优惠券
+     * @param orderIds 与voucherIds一一对应的订单id
+     * @param reserved 库存是否已由租用库存预扣
+     * @return 每个优惠券的结果码
+     */
+    private List<?> executeSeckillScript(Long userId, List<Long> voucherIds, long[] orderIds, boolean reserved) {
+        if (segmentedStock.isEnabled()) {
+            // 分段模式下各优惠券的分段不在同一个slot，逐个秒杀（分段模式与租用库存不会同时开启）
+            List<Integer> results = new ArrayList<>(voucherIds.size());
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Long voucherId = voucherIds.get(i);
+                results.add(segmentedStock.seckill(voucherId, userId, orderIds[i],
+                        OrderMessageCodec.encode(userId, voucherId, orderIds[i]),
+                        voucherOrderStatus.getTtlSeconds(), waitingRoom.isEnabled()));
+            }
+            return results;
+        }
+        List<String> args = new ArrayList<>(6 + voucherIds.size() * 4);
+        args.add(userId.toString());
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(waitingRoom.isEnabled() ? "1" : "0");
+        args.add(String.valueOf(voucherOrderStatus.getTtlSeconds()));
+        args.add(String.valueOf(bitmapMaxUserId));
+        args.add(String.valueOf(voucherIds.size()));
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Long voucherId = voucherIds.get(i);
+            args.add(voucherId.toString());
+            args.add(String.valueOf(orderIds[i]));
+            args.add(reserved ? "1" : "0");
+            args.add(OrderMessageCodec.encode(userId, voucherId, orderIds[i]));
+        }
+        return stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), args.toArray());
+    }
+
+    @Override
+    public Result enterWaitingRoom(Long voucherId) {
+        if (!waitingRoom.isEnabled()) {
+            return Result.fail("未开启排队!");
+        }
+        Map<String, Object> status = waitingRoom.enter(voucherId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("秒杀券不存在或已结束!");
+        }
+        return Result.ok(status);
+    }
+
+    @Override
+    public Result queryWaitingRoom(Long voucherId) {
+        return Result.ok(waitingRoom.status(voucherId, UserHolder.getUser().getId()));
+    }
+
+    /**
+     * seckill.lua 返回码对应的提示：1库存不足 2重复下单 3未开始 4已结束 5未排队放行 6限流（仅批量秒杀）
+     */
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足!";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始!";
+            case 4:
+                return "秒杀已经结束!";
+            case 5:
+                return "请先排队!";
+            case 6:
+                return "请求过于频繁，请稍后再试";
+            default:
+                return "下单失败!";
+        }
+    }
+
     /*@Override
     public Result seckillVocher(Long voucherId) {
         // 获取用户
@@ -241,27 +576,140 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5.一人一单
-        Long userId = voucherOrder.getUserId();
-        // 5.1 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 5.2 判断是否存在
-        if (count > 0) {
+        // 5.一人一单：由 (user_id, voucher_id) 唯一索引保证，重复订单被忽略
+        int inserted = getBaseMapper().insertBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            // 重放已落库的同一订单视为成功
+            if (getById(voucherOrder.getId()) != null) {
+                afterCommit(() -> orderCreated(Collections.singletonList(voucherOrder)));
+                return;
+            }
             log.error("用户已经购买过一次!");
+            voucherOrderStatus.failed(voucherOrder, "不能重复下单");
             return;
         }
 
         // 6.扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")  //set stock = stock - 1
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) //where id = ? and stock > 0
-                .update();
-        if (!success) {
+        if (seckillVoucherMapper.decreaseStock(voucherOrder.getVoucherId(), 1) == 0) {
+            // 回滚已保存的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
             log.error("库存不足!");
+            voucherOrderStatus.failed(voucherOrder, "库存不足");
             return;
         }
-        // 7. 保存订单
-        save(voucherOrder);
+        afterCommit(() -> orderCreated(Collections.singletonList(voucherOrder)));
+    }
+
+
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，秒杀期间一批订单通常只属于一个优惠券。
+        // 按优惠券id升序扣减库存，并发的批次以相同顺序锁定库存行，避免死锁
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new TreeMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+        List<VoucherOrder> duplicated = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            // 2.一人一单由 (user_id, voucher_id) 唯一索引保证，INSERT IGNORE 跳过重复订单（pending-list重放时会出现）
+            int inserted = getBaseMapper().insertBatch(entry.getValue());
+            if (inserted < entry.getValue().size()) {
+                log.error("用户已经购买过一次! voucherId={}, 重复 {} 单", entry.getKey(), entry.getValue().size() - inserted);
+                splitDuplicated(entry.getValue(), created, duplicated);
+            } else {
+                created.addAll(entry.getValue());
+            }
+            // 3.按实际插入的数量 stock = stock - k
+            if (inserted > 0 && seckillVoucherMapper.decreaseStock(entry.getKey(), inserted) == 0) {
+                // 整批回滚，消息留在pending-list中逐条处理
+                throw new IllegalStateException("库存不足! voucherId=" + entry.getKey() + ", count=" + inserted);
+            }
+        }
+        // 4.事务提交后更新订单状态
+        afterCommit(() -> {
+            orderCreated(created);
+            for (VoucherOrder voucherOrder : duplicated) {
+                voucherOrderStatus.failed(voucherOrder, "不能重复下单");
+            }
+        });
+    }
+
+    /**
+     * 按订单id区分：已落库的（本批插入或之前已插入的同一订单）与被唯一索引拒绝的重复订单
+     */
+    private void splitDuplicated(List<VoucherOrder> voucherOrders, List<VoucherOrder> created, List<VoucherOrder> duplicated) {
+        List<Long> ids = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ids.add(voucherOrder.getId());
+        }
+        Set<Long> saved = new HashSet<>();
+        for (VoucherOrder voucherOrder : listByIds(ids)) {
+            saved.add(voucherOrder.getId());
+        }
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            (saved.contains(voucherOrder.getId()) ? created : duplicated).add(voucherOrder);
+        }
+    }
+
+    /**
+     * 订单落库后：更新订单状态，登记支付截止时间
+     */
+    private void orderCreated(List<VoucherOrder> voucherOrders) {
+        voucherOrderStatus.created(voucherOrders);
+        List<Long> orderIds = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderIds.add(voucherOrder.getId());
+        }
+        unpaidOrderCanceller.schedule(orderIds);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1.锁定订单，避免与支付并发
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds).last("FOR UPDATE").list();
+        // 2.取消未支付的订单，按优惠券汇总归还数量
+        List<Long> unpaid = new ArrayList<>();
+        Map<Long, Integer> stockDelta = new TreeMap<>();
+        for (VoucherOrder order : orders) {
+            if (VOUCHER_ORDER_UNPAID.equals(order.getStatus())) {
+                unpaid.add(order.getId());
+                stockDelta.merge(order.getVoucherId(), 1, Integer::sum);
+                order.setStatus(VOUCHER_ORDER_CANCELLED);
+            }
+        }
+        if (unpaid.isEmpty()) {
+            return orders;
+        }
+        update().set("status", VOUCHER_ORDER_CANCELLED).in("id", unpaid).eq("status", VOUCHER_ORDER_UNPAID).update();
+        // 3.归还库存
+        for (Map.Entry<Long, Integer> entry : stockDelta.entrySet()) {
+            seckillVoucherMapper.increaseStock(entry.getKey(), entry.getValue());
+        }
+        return orders;
+    }
+
+    private static void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 只能查询自己的订单，其他用户的订单与不存在的订单返回相同结果
+        Map<String, Object> status = voucherOrderStatus.get(UserHolder.getUser().getId(), orderId);
+        if (status == null) {
+            return Result.fail("订单不存在或状态已过期!");
+        }
+        return Result.ok(status);
     }
 
 
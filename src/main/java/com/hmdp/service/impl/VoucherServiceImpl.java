@@ -1,25 +1,48 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SegmentedStock;
+import com.hmdp.utils.SoldOutCache;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYERS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
 /**
  * <p>
@@ -29,6 +52,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 珠代
  * @since 2022-6-20
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -38,6 +62,37 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    /**
+     * 启动时是否重建Redis中缺失的秒杀状态
+     */
+    @Value("${seckill.reconcile.on-startup:true}")
+    private boolean reconcileOnStartup;
+
+    private static final int RECONCILE_PAGE_SIZE = 5000;
+
+    private static final long RECONCILE_TMP_TTL_MINUTES = 30;
+
+    /**
+     * 与seckill.lua一致：用户id不超过该值的已购用户记录在位图中
+     */
+    @Value("${seckill.dedup.bitmap-max-user-id:0}")
+    private long bitmapMaxUserId;
+
+    /**
+     * 提前多少分钟预热秒杀券
+     */
+    @Value("${seckill.preload.ahead-minutes:30}")
+    private long preloadAheadMinutes;
+
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -60,9 +115,260 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存秒杀信息到redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        // 保存秒杀信息到redis，先写起止时间，库存与已购用户随其一起过期
+        saveSeckillWindow(seckillVoucher);
+        saveSeckillStock(voucher.getId(), voucher.getStock(), true);
+        expireWithWindow(seckillVoucher);
+        // 库存已补充，清除各节点的售罄标记
+        soldOutCache.clear(voucher.getId());
+    }
+
+    /**
+     * 定时把即将开始和进行中的秒杀券的库存、起止时间预热到Redis，
+     * 节点重启或Redis清空后，开售前仍能保证下单链路不读数据库
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${seckill.preload.interval-ms:60000}")
+    public void preloadSeckillVouchers() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                    .gt("end_time", now)
+                    .lt("begin_time", now.plusMinutes(preloadAheadMinutes))
+                    .list();
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                // 已存在的库存可能已被扣减，不能用数据库中的库存覆盖
+                saveSeckillWindow(seckillVoucher);
+                if (saveSeckillStock(seckillVoucher.getVoucherId(), seckillVoucher.getStock(), false)) {
+                    log.info("预热秒杀库存, voucherId={}, stock={}", seckillVoucher.getVoucherId(), seckillVoucher.getStock());
+                }
+                expireWithWindow(seckillVoucher);
+            }
+        } catch (Exception e) {
+            log.error("预热秒杀券异常", e);
+        }
+    }
+
+    @Override
+    public boolean saveSeckillStock(Long voucherId, int stock, boolean overwrite) {
+        if (segmentedStock.isEnabled()) {
+            return segmentedStock.save(voucherId, stock, overwrite);
+        }
+        if (overwrite) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return true;
+        }
+        return BooleanUtil.isTrue(
+                stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock)));
+    }
+
+    /**
+     * 保存秒杀起止时间（毫秒时间戳），由seckill.lua校验，秒杀结束一天后过期，
+     * 过期后seckill.lua视为秒杀已结束
+     */
+    private void saveSeckillWindow(SeckillVoucher seckillVoucher) {
+        String key = SECKILL_WINDOW_KEY + seckillVoucher.getVoucherId();
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(key, window);
+        stringRedisTemplate.expireAt(key, windowExpireAt(seckillVoucher));
+        if (segmentedStock.isEnabled()) {
+            segmentedStock.saveWindow(seckillVoucher.getVoucherId(), window, windowExpireAt(seckillVoucher));
+        }
+    }
+
+    /**
+     * 库存和已购用户与起止时间同时过期。已购用户由seckill.lua在首次下单时创建，
+     * 秒杀进行中定时预热会再次设置，保证秒杀结束后不会留下没有过期时间的key
+     */
+    private void expireWithWindow(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Date expireAt = windowExpireAt(seckillVoucher);
+        stringRedisTemplate.expireAt(SECKILL_STOCK_KEY + voucherId, expireAt);
+        stringRedisTemplate.expireAt(SECKILL_ORDER_KEY + voucherId, expireAt);
+        stringRedisTemplate.expireAt(SECKILL_BUYERS_KEY + voucherId, expireAt);
+        if (segmentedStock.isEnabled()) {
+            segmentedStock.expireAt(voucherId, expireAt);
+        }
+    }
+
+    private static Date windowExpireAt(SeckillVoucher seckillVoucher) {
+        return Date.from(seckillVoucher.getEndTime().plusDays(1).atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * 启动时重建Redis中缺失的秒杀状态（Redis重启或被清空）
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void reconcileOnStartup() {
+        if (!reconcileOnStartup) {
+            return;
+        }
+        try {
+            reconcileSeckillVouchers(true);
+        } catch (Exception e) {
+            log.error("启动时重建秒杀状态异常", e);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> reconcileSeckillVouchers(boolean rebuild) {
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        List<Map<String, Object>> reports = new ArrayList<>(seckillVouchers.size());
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            reports.add(reconcile(seckillVoucher, rebuild));
+        }
+        return reports;
+    }
+
+    @Override
+    public Map<String, Object> reconcileSeckillVoucher(Long voucherId, boolean rebuild) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            return null;
+        }
+        return reconcile(seckillVoucher, rebuild);
+    }
+
+    /**
+     * 对比Redis与MySQL中的秒杀状态，rebuild时补齐Redis中缺失的库存、起止时间和已购用户。
+     * Redis中已扣减但尚未落库的订单同时体现在库存和已购用户上，因此 库存 + 已购用户数 在两边应当相等，
+     * 差值即为漂移（租用库存模式下，各节点尚未使用的租用库存也会计入漂移）
+     */
+    private Map<String, Object> reconcile(SeckillVoucher seckillVoucher, boolean rebuild) {
+        long begin = System.currentTimeMillis();
+        Long voucherId = seckillVoucher.getVoucherId();
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        // 1.MySQL中的已购用户：rebuild时按id游标分页流式读取并写入临时集合，否则只计数
+        long dbBuyers;
+        if (rebuild) {
+            saveSeckillWindow(seckillVoucher);
+            dbBuyers = rebuildBuyers(voucherId, orderKey);
+            saveSeckillStock(voucherId, seckillVoucher.getStock(), false);
+            expireWithWindow(seckillVoucher);
+        } else {
+            dbBuyers = voucherOrderMapper.selectCount(new QueryWrapper<VoucherOrder>()
+                    .eq("voucher_id", voucherId));
+        }
+        // 2.Redis中的库存与已购用户
+        Long redisStock = redisStock(voucherId);
+        Long redisBuyers = redisBuyers(voucherId, orderKey);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("dbStock", seckillVoucher.getStock());
+        report.put("dbBuyers", dbBuyers);
+        report.put("redisStock", redisStock);
+        report.put("redisBuyers", redisBuyers);
+        if (redisStock != null && redisBuyers != null) {
+            report.put("drift", redisStock + redisBuyers - seckillVoucher.getStock() - dbBuyers);
+        }
+        report.put("rebuild", rebuild);
+        report.put("costMillis", System.currentTimeMillis() - begin);
+        if (rebuild) {
+            log.info("秒杀状态重建完成: {}", report);
+        }
+        return report;
+    }
+
+    /**
+     * 按id游标分页读取订单（已取消的订单仍占用唯一索引，用户仍是已购状态），已购用户先写入临时集合，最后与线上集合取并集，
+     * 不会丢失Redis中已下单但尚未落库的用户。位图模式下的用户直接SETBIT到线上位图，分段模式下直接SADD到用户所属分段，本身都是幂等的
+     */
+    private long rebuildBuyers(Long voucherId, String orderKey) {
+        // 每次重建使用独立的临时集合，多个节点同时启动重建时不会删除彼此已写入的用户
+        String tmpKey = orderKey + ":rebuild:" + UUID.randomUUID().toString(true);
+        long cursor = 0;
+        long buyers = 0;
+        long setBuyers = 0;
+        while (true) {
+            List<VoucherOrder> page = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", cursor)
+                    .orderByAsc("id")
+                    .last("LIMIT " + RECONCILE_PAGE_SIZE));
+            if (page.isEmpty()) {
+                break;
+            }
+            List<String> userIds = new ArrayList<>(page.size());
+            List<Long> bitmapUserIds = new ArrayList<>();
+            List<Long> segmentUserIds = new ArrayList<>();
+            for (VoucherOrder voucherOrder : page) {
+                Long userId = voucherOrder.getUserId();
+                if (segmentedStock.isEnabled()) {
+                    segmentUserIds.add(userId);
+                } else if (userId <= bitmapMaxUserId) {
+                    bitmapUserIds.add(userId);
+                } else {
+                    userIds.add(userId.toString());
+                }
+            }
+            // 分段模式下直接写入用户所属分段的集合
+            if (!segmentUserIds.isEmpty()) {
+                segmentedStock.addBuyers(voucherId, segmentUserIds);
+            }
+            // 一页一次SADD，位图一页一次管道
+            if (!userIds.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(tmpKey, userIds.toArray(new String[0]));
+                // 重建中途宕机时临时集合自动过期
+                stringRedisTemplate.expire(tmpKey, RECONCILE_TMP_TTL_MINUTES, TimeUnit.MINUTES);
+                setBuyers += userIds.size();
+            }
+            if (!bitmapUserIds.isEmpty()) {
+                byte[] buyersKey = (SECKILL_BUYERS_KEY + voucherId).getBytes(StandardCharsets.UTF_8);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long userId : bitmapUserIds) {
+                        connection.setBit(buyersKey, userId, true);
+                    }
+                    return null;
+                });
+            }
+            buyers += page.size();
+            cursor = page.get(page.size() - 1).getId();
+            if (page.size() < RECONCILE_PAGE_SIZE) {
+                break;
+            }
+        }
+        if (setBuyers > 0) {
+            stringRedisTemplate.opsForSet().unionAndStore(orderKey, tmpKey, orderKey);
+            stringRedisTemplate.delete(tmpKey);
+        }
+        return buyers;
     }
 
+    /**
+     * Redis中的已购用户数：集合中的用户加上位图中的用户
+     */
+    private Long redisBuyers(Long voucherId, String orderKey) {
+        if (segmentedStock.isEnabled()) {
+            return segmentedStock.buyers(voucherId);
+        }
+        Long setBuyers = stringRedisTemplate.opsForSet().size(orderKey);
+        byte[] buyersKey = (SECKILL_BUYERS_KEY + voucherId).getBytes(StandardCharsets.UTF_8);
+        Long bitmapBuyers = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(buyersKey));
+        if (setBuyers == null || bitmapBuyers == null) {
+            return null;
+        }
+        return setBuyers + bitmapBuyers;
+    }
+
+    /**
+     * Redis中的剩余库存
+     * @return null表示库存不存在
+     */
+    private Long redisStock(Long voucherId) {
+        if (segmentedStock.isEnabled()) {
+            return segmentedStock.stock(voucherId);
+        }
+        String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        return stock == null ? null : Long.valueOf(stock);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 
 }
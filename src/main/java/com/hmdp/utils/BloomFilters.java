@@ -0,0 +1,384 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_PUT_CHANNEL;
+
+/**
+ * 按名称管理的布隆过滤器，用于在访问Redis和数据库之前拒绝一定不存在的id（缓存穿透）。
+ * local模式为进程内位数组，每个节点各自加载，新增的id通过Redis pub/sub广播到所有节点；
+ * redis模式使用Redisson基于Redis位图的布隆过滤器，所有节点共享当前版本。
+ * 过滤器定时重建：新版本加载完成后才替换旧版本，local模式下可以补上丢失的广播，
+ * redis模式下只在当前版本不存在（如Redis被清空）时由一个节点重建。过滤器可用之前一律放行
+ */
+@Slf4j
+@Component
+public class BloomFilters implements MessageListener {
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${bloom.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * local 或 redis
+     */
+    @Value("${bloom.mode:local}")
+    private String mode;
+
+    @Value("${bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    /**
+     * 误判率
+     */
+    @Value("${bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 重建周期：local模式下重建本节点的过滤器，redis模式下检查当前版本是否存在
+     */
+    @Value("${bloom.rebuild-interval-ms:300000}")
+    private long rebuildIntervalMillis;
+
+    /**
+     * redis模式下重建锁的有效期，需大于一次完整加载的耗时
+     */
+    private static final long REBUILD_LOCK_TTL_SECONDS = 1800;
+
+    /**
+     * 当前使用的过滤器
+     */
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    /**
+     * local模式下正在重建的过滤器，重建期间新增的id同时写入，替换后不会丢失
+     */
+    private final Map<String, Filter> loading = new ConcurrentHashMap<>();
+
+    private final Map<String, IdLoader> loaders = new ConcurrentHashMap<>();
+
+    /**
+     * 读取全部id，每读到一页交给sink
+     */
+    @FunctionalInterface
+    public interface IdLoader {
+        /**
+         * @return 读取的id数量
+         */
+        long load(Consumer<Collection<?>> sink);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (enabled && !isRedisMode()) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_PUT_CHANNEL));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 注册过滤器并立即加载，之后由 {@link #rebuild()} 定时重建
+     */
+    public void register(String name, IdLoader loader) {
+        if (!enabled) {
+            return;
+        }
+        loaders.put(name, loader);
+        refresh(name);
+    }
+
+    @Scheduled(fixedDelayString = "${bloom.rebuild-interval-ms:300000}",
+            initialDelayString = "${bloom.rebuild-interval-ms:300000}")
+    public void rebuild() {
+        for (String name : loaders.keySet()) {
+            refresh(name);
+        }
+    }
+
+    /**
+     * @return false表示id一定不存在
+     */
+    public boolean mightContain(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (filter == null || !filter.ready) {
+            return true;
+        }
+        return filter.mightContain(id.toString());
+    }
+
+    /**
+     * 添加id：写入当前和正在重建的过滤器，local模式下同时广播给其他节点
+     */
+    public void put(String name, Object id) {
+        if (!enabled) {
+            return;
+        }
+        String value = id.toString();
+        if (isRedisMode()) {
+            putRedis(name, value);
+            return;
+        }
+        putLocal(name, value);
+        stringRedisTemplate.convertAndSend(BLOOM_PUT_CHANNEL, name + ":" + value);
+    }
+
+    /**
+     * 其他节点新增的id，消息格式为 name:id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        if (i > 0) {
+            putLocal(body.substring(0, i), body.substring(i + 1));
+        }
+    }
+
+    private boolean isRedisMode() {
+        return "redis".equals(mode);
+    }
+
+    private void refresh(String name) {
+        try {
+            if (isRedisMode()) {
+                refreshRedis(name);
+            } else {
+                rebuildLocal(name);
+            }
+        } catch (Exception e) {
+            // 重建失败时继续使用旧版本，没有旧版本时一律放行
+            log.error("重建布隆过滤器 {} 异常", name, e);
+        }
+    }
+
+    private void putLocal(String name, String value) {
+        Filter filter = filters.get(name);
+        if (filter != null) {
+            filter.put(value);
+        }
+        Filter next = loading.get(name);
+        if (next != null) {
+            next.put(value);
+        }
+    }
+
+    /**
+     * 加载到新的位数组后替换当前过滤器
+     */
+    private void rebuildLocal(String name) {
+        long begin = System.currentTimeMillis();
+        LocalFilter next = new LocalFilter(expectedInsertions, fpp);
+        // 先登记再读取：登记之后新增的id由put写入，登记之前提交的id一定能被读到
+        loading.put(name, next);
+        try {
+            long count = loaders.get(name).load(ids -> {
+                for (Object id : ids) {
+                    next.put(id.toString());
+                }
+            });
+            next.ready = true;
+            filters.put(name, next);
+            log.info("布隆过滤器 {} 重建完成, {} 个id, 耗时 {} ms", name, count, System.currentTimeMillis() - begin);
+        } finally {
+            loading.remove(name, next);
+        }
+    }
+
+    private void putRedis(String name, String value) {
+        Filter filter = filters.get(name);
+        if (filter != null) {
+            filter.put(value);
+        }
+        // 其他节点正在重建时同时写入新版本
+        String next = stringRedisTemplate.opsForValue().get(loadingKey(name));
+        if (next != null && !(filter instanceof RedisFilter && next.equals(((RedisFilter) filter).version))) {
+            redissonClient.<String>getBloomFilter(versionKey(name, next)).add(value);
+        }
+    }
+
+    /**
+     * 切换到Redis中的当前版本，当前版本不存在时重建
+     */
+    private void refreshRedis(String name) {
+        String version = stringRedisTemplate.opsForValue().get(currentKey(name));
+        if (version != null) {
+            RBloomFilter<String> bloomFilter = redissonClient.getBloomFilter(versionKey(name, version));
+            if (isInitialized(bloomFilter)) {
+                Filter filter = filters.get(name);
+                if (!(filter instanceof RedisFilter) || !filter.ready || !version.equals(((RedisFilter) filter).version)) {
+                    filters.put(name, new RedisFilter(bloomFilter, version));
+                }
+                return;
+            }
+        }
+        rebuildRedis(name);
+    }
+
+    /**
+     * 加载到新版本后切换当前版本，旧版本在其他节点切换之后过期。只有抢到锁的节点重建
+     */
+    private void rebuildRedis(String name) {
+        SimpleRedisLock lock = new SimpleRedisLock("bloom:" + name, stringRedisTemplate);
+        if (!lock.tryLock(REBUILD_LOCK_TTL_SECONDS)) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            String version = String.valueOf(begin);
+            RBloomFilter<String> bloomFilter = redissonClient.getBloomFilter(versionKey(name, version));
+            bloomFilter.tryInit(expectedInsertions, fpp);
+            // 先登记再读取，与local模式相同
+            stringRedisTemplate.opsForValue().set(loadingKey(name), version, REBUILD_LOCK_TTL_SECONDS, TimeUnit.SECONDS);
+            long count = loaders.get(name).load(ids -> {
+                for (Object id : ids) {
+                    bloomFilter.add(id.toString());
+                }
+            });
+            String old = stringRedisTemplate.opsForValue().getAndSet(currentKey(name), version);
+            stringRedisTemplate.delete(loadingKey(name));
+            if (old != null && !old.equals(version)) {
+                redissonClient.getBloomFilter(versionKey(name, old)).expire(rebuildIntervalMillis * 2, TimeUnit.MILLISECONDS);
+            }
+            filters.put(name, new RedisFilter(bloomFilter, version));
+            log.info("布隆过滤器 {} 重建完成, {} 个id, 耗时 {} ms", name, count, System.currentTimeMillis() - begin);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    private static boolean isInitialized(RBloomFilter<String> bloomFilter) {
+        try {
+            bloomFilter.getExpectedInsertions();
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private static String currentKey(String name) {
+        return BLOOM_KEY + name + ":current";
+    }
+
+    private static String loadingKey(String name) {
+        return BLOOM_KEY + name + ":loading";
+    }
+
+    private static String versionKey(String name, String version) {
+        return BLOOM_KEY + name + ":" + version;
+    }
+
+    private abstract static class Filter {
+        volatile boolean ready;
+
+        abstract boolean mightContain(String value);
+
+        abstract void put(String value);
+    }
+
+    /**
+     * 进程内位数组，k个哈希由一次128位MurmurHash的两个64位值组合得到
+     */
+    private static class LocalFilter extends Filter {
+        private final AtomicLongArray bits;
+        private final long bitSize;
+        private final int hashCount;
+
+        LocalFilter(long expectedInsertions, double fpp) {
+            long n = Math.max(1, expectedInsertions);
+            this.bitSize = Math.max(64, (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+            this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+            this.bits = new AtomicLongArray((int) ((bitSize + 63) / 64));
+        }
+
+        @Override
+        boolean mightContain(String value) {
+            long[] hash = MurmurHash.hash128(value);
+            for (int i = 0; i < hashCount; i++) {
+                long index = index(hash, i);
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void put(String value) {
+            long[] hash = MurmurHash.hash128(value);
+            for (int i = 0; i < hashCount; i++) {
+                long index = index(hash, i);
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = bits.get(word);
+                } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+            }
+        }
+
+        private long index(long[] hash, int i) {
+            return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitSize;
+        }
+    }
+
+    private static class RedisFilter extends Filter {
+        private final RBloomFilter<String> bloomFilter;
+        private final String version;
+
+        RedisFilter(RBloomFilter<String> bloomFilter, String version) {
+            this.bloomFilter = bloomFilter;
+            this.version = version;
+            this.ready = true;
+        }
+
+        @Override
+        boolean mightContain(String value) {
+            try {
+                return bloomFilter.contains(value);
+            } catch (IllegalStateException e) {
+                // Redis被清空后过滤器配置不存在，停用过滤器一律放行，由定时任务重建
+                ready = false;
+                log.warn("布隆过滤器 {} 不可用，已停用: {}", bloomFilter.getName(), e.getMessage());
+                return true;
+            }
+        }
+
+        @Override
+        void put(String value) {
+            bloomFilter.add(value);
+        }
+    }
+}
@@ -5,33 +5,154 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * @author :珠代
- * @description :
+ * @description : 缓存工具。开启cache.l1后在Redis前增加一层进程内缓存（L1），命中时不再访问Redis和反序列化，
+ * 通过pub/sub广播失效；pub/sub不保证送达，因此L1条目有较短的有效期。L1中的对象在节点内共享，调用方不应修改
  * @create :2022-05-24 21:17:00
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SingleFlight singleFlight;
+
+    @Value("${cache.l1.enabled:false}")
+    private boolean l1Enabled;
+
+    @Value("${cache.l1.max-size:1000}")
+    private int l1MaxSize;
+
+    /**
+     * L1条目有效期，也是丢失失效通知时的最长不一致时间
+     */
+    @Value("${cache.l1.ttl-ms:5000}")
+    private long l1TtlMillis;
+
+    /**
+     * L1中的空值标记（缓存穿透时写入Redis的空值）
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private LocalCache l1;
+
+    @PostConstruct
+    private void init() {
+        if (!l1Enabled) {
+            return;
+        }
+        l1 = new LocalCache(l1MaxSize, l1TtlMillis);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        FunctionCounter.builder("cache.l1.requests", l1, LocalCache::hitCount)
+                .description("L1缓存访问次数").tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("cache.l1.requests", l1, LocalCache::missCount)
+                .description("L1缓存访问次数").tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("cache.l1.evictions", l1, LocalCache::sizeEvictionCount)
+                .description("L1缓存淘汰次数").tag("cause", "size").register(meterRegistry);
+        FunctionCounter.builder("cache.l1.evictions", l1, LocalCache::expiredEvictionCount)
+                .description("L1缓存淘汰次数").tag("cause", "expired").register(meterRegistry);
+        FunctionCounter.builder("cache.l1.evictions", l1, LocalCache::invalidationCount)
+                .description("L1缓存淘汰次数").tag("cause", "invalidated").register(meterRegistry);
+        Gauge.builder("cache.l1.size", l1, LocalCache::size)
+                .description("L1缓存条目数").register(meterRegistry);
+        Gauge.builder("cache.l1.hit.ratio", l1, c -> {
+                    long total = c.hitCount() + c.missCount();
+                    return total == 0 ? 0 : (double) c.hitCount() / total;
+                })
+                .description("L1缓存命中率").register(meterRegistry);
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        evictLocal(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清除L1
+     */
+    public void invalidate(String key) {
+        stringRedisTemplate.delete(key);
+        if (l1 != null) {
+            l1.invalidate(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        l1.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return L1中的值，NULL_VALUE表示空值，null表示未命中或未开启L1
+     */
+    private Object getLocal(String key, Class<?> type) {
+        if (l1 == null) {
+            return null;
+        }
+        Object value = l1.get(key);
+        return value == NULL_VALUE || type.isInstance(value) ? value : null;
+    }
+
+    private void putLocal(String key, Object value) {
+        if (l1 != null) {
+            l1.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    private void evictLocal(String key) {
+        if (l1 != null) {
+            l1.invalidate(key);
+        }
     }
 
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit){
@@ -40,6 +161,7 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        evictLocal(key);
     }
 
     /**
@@ -57,17 +179,25 @@ public class CacheClient {
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String redisKey = keyPrefix + id;
+        // 0. 先查L1
+        Object local = getLocal(redisKey, type);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
         // 1. 从redis里查询
         String shopJson = stringRedisTemplate.opsForValue().get(redisKey);
         // 2. 判断是否存在
         if (StrUtil.isNotBlank(shopJson)) {
             // 3. 存在，返回
-            return JSONUtil.toBean(shopJson, type);
+            R r = JSONUtil.toBean(shopJson, type);
+            putLocal(redisKey, r);
+            return r;
         }
         //此时剩下空("")和null两种情况
         //判断是否是空值
         if (shopJson != null) {
             // 返回错误信息
+            putLocal(redisKey, null);
             return null;
         }
         // 4. 不存在，从数据库查
@@ -80,12 +210,41 @@ public class CacheClient {
         }
         // 6. 存在，写入缓存
         this.set(redisKey, r, time, unit);
+        putLocal(redisKey, r);
         // 7. 返回
         return r;
     }
 
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 缓存重建线程池，队列有界，队列满时放弃本次重建（下次读取时再触发）
+     */
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(10, 10,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000));
+
+    /**
+     * 本节点正在重建的key，同一个key只提交一个重建任务
+     */
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * keyPrefix -> 观测到的重建耗时（毫秒，指数加权平均）
+     */
+    private final Map<String, Double> loadCostMillis = new ConcurrentHashMap<>();
+
+    private static final double DEFAULT_LOAD_COST_MILLIS = 50;
+
+    /**
+     * 提前刷新：逻辑过期前按概率提前重建，剩余时间越短、重建越慢，概率越高（-耗时 * beta * ln(rand) >= 剩余时间）
+     */
+    @Value("${cache.refresh-ahead.enabled:false}")
+    private boolean refreshAheadEnabled;
+
+    /**
+     * 大于1时更早刷新，小于1时更晚刷新
+     */
+    @Value("${cache.refresh-ahead.beta:1.0}")
+    private double refreshAheadBeta;
 
     /**
      * 缓存击穿解决方案：逻辑过期
@@ -101,11 +260,29 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicExpire( String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String redisKey = keyPrefix + id;
+        // 0. 先查L1，L1中保存已反序列化的数据和逻辑过期时间，逻辑过期后仍走Redis触发重建
+        Object local = getLocal(redisKey, RedisData.class);
+        if (local instanceof RedisData) {
+            RedisData localData = (RedisData) local;
+            if (type.isInstance(localData.getData()) && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                if (shouldRefreshEarly(keyPrefix, localData.getExpireTime())) {
+                    rebuildAsync(keyPrefix, id, redisKey, dbFallback, time, unit, "early");
+                }
+                return type.cast(localData.getData());
+            }
+        }
         // 1. 从redis里查询
         String shopJson = stringRedisTemplate.opsForValue().get(redisKey);
         // 2. 判断是否存在
+        if (shopJson == null) {
+            // 3. 不存在（未预热或Redis被清空），节点内合并后加载
+            R r = singleFlight.execute(redisKey, () -> loadColdWithLock(redisKey, id, type, dbFallback, time, unit));
+            putLocal(redisKey, r);
+            return r;
+        }
         if (StrUtil.isBlank(shopJson)) {
-            // 3. 不存在，返回
+            // 3.1 空值，数据库中不存在
+            putLocal(redisKey, null);
             return null;
         }
         // 4.命中 把JSON字符串反序列化
@@ -115,38 +292,86 @@ public class CacheClient {
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1 未过期返回店铺
+            // 5.1 未过期返回店铺，临近过期时按概率提前刷新
+            RedisData localData = new RedisData();
+            localData.setData(r);
+            localData.setExpireTime(expireTime);
+            putLocal(redisKey, localData);
+            if (shouldRefreshEarly(keyPrefix, expireTime)) {
+                rebuildAsync(keyPrefix, id, redisKey, dbFallback, time, unit, "early");
+            }
             return r;
         }
-        // 5.2 过期，重建缓存
+        // 5.2 过期，异步重建缓存
+        rebuildAsync(keyPrefix, id, redisKey, dbFallback, time, unit, "expired");
+        // 6.4 返回过期的店铺信息
+        return r;
+    }
+
+    private boolean shouldRefreshEarly(String keyPrefix, LocalDateTime expireTime) {
+        if (!refreshAheadEnabled) {
+            return false;
+        }
+        long remaining = Duration.between(LocalDateTime.now(), expireTime).toMillis();
+        double cost = loadCostMillis.getOrDefault(keyPrefix, DEFAULT_LOAD_COST_MILLIS);
+        return -cost * refreshAheadBeta * Math.log(ThreadLocalRandom.current().nextDouble()) >= remaining;
+    }
+
+    /**
+     * 提交逻辑过期数据的重建任务：本节点同一个key只提交一次，跨节点由互斥锁保证只有一个节点重建
+     */
+    private <R, ID> void rebuildAsync(String keyPrefix, ID id, String redisKey, Function<ID, R> dbFallback,
+                                      Long time, TimeUnit unit, String reason) {
+        if (!rebuilding.add(redisKey)) {
+            return;
+        }
         // 6.1 获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
         // 6.2 判断是否成功
-        if (isLock) {
+        if (!tryLock(lockKey)) {
+            rebuilding.remove(redisKey);
+            return;
+        }
+        try {
             // 6.3 成功，开启独立线程，实现缓存重建
-            // 再次检查是否过期
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                // 5.1 未过期返回店铺
-                return r;
-            }
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            CACHE_REBUILD_EXECUTOR.execute(() -> {
+                long begin = System.currentTimeMillis();
                 try {
                     //查询数据库
                     R r1 = dbFallback.apply(id);
-                    //写入Redis
-                    this.setWithLogicExpire(redisKey, r1, time, unit);
-
+                    //写入Redis，数据已删除时写入空值
+                    if (r1 == null) {
+                        stringRedisTemplate.opsForValue().set(redisKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        evictLocal(redisKey);
+                    } else {
+                        this.setWithLogicExpire(redisKey, r1, time, unit);
+                    }
+                    recordLoadCost(keyPrefix, System.currentTimeMillis() - begin);
+                    refreshCounter(reason).increment();
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("缓存重建异常, key={}", redisKey, e);
                 } finally {
                     //释放锁
                     unlock(lockKey);
+                    rebuilding.remove(redisKey);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            unlock(lockKey);
+            rebuilding.remove(redisKey);
+            refreshCounter("rejected").increment();
         }
-        // 6.4 失败，返回过期的店铺信息
-        return r;
+    }
+
+    private void recordLoadCost(String keyPrefix, long millis) {
+        loadCostMillis.merge(keyPrefix, (double) millis, (old, cost) -> old * 0.8 + cost * 0.2);
+    }
+
+    private Counter refreshCounter(String reason) {
+        return Counter.builder("cache.logic.rebuild")
+                .description("逻辑过期缓存的重建次数：early提前刷新，expired过期后重建，rejected线程池已满")
+                .tag("reason", reason)
+                .register(meterRegistry);
     }
 
     /**
@@ -163,35 +388,48 @@ public class CacheClient {
      */
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String redisKey = keyPrefix + id;
+        // 0. 先查L1
+        Object local = getLocal(redisKey, type);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
         // 1. 从redis里查询
         String shopJson = stringRedisTemplate.opsForValue().get(redisKey);
         // 2. 判断是否存在
         if (StrUtil.isNotBlank(shopJson)) {
             // 3. 存在，返回
-            return JSONUtil.toBean(shopJson, type);
+            R r = JSONUtil.toBean(shopJson, type);
+            putLocal(redisKey, r);
+            return r;
         }
         //判断是否是空值
         if (shopJson != null) {
             // 返回错误信息
+            putLocal(redisKey, null);
             return null;
         }
-        // 4. 实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断是否成功
-            if (!isLock){
-                // 4.3 失败，休眠并重试
-                Thread.sleep(50);
-                queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
+        // 4. 实现缓存重建：节点内同一个key只有一个线程重建，其他线程等待同一个结果
+        R r = singleFlight.execute(redisKey, () -> rebuildWithLock(redisKey, id, type, dbFallback, time, unit));
+        putLocal(redisKey, r);
+        // 8. 返回
+        return r;
+    }
 
-            // 4.4 成功，从数据库查
-            r = dbFallback.apply(id);
-            // 模拟重建延时
-            Thread.sleep(200);
+    /**
+     * 互斥锁方案的缓存重建：持锁后再次查询Redis，其他节点可能已经重建完成
+     */
+    private <R, ID> R rebuildWithLock(String redisKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return withLock(redisKey, () -> {
+            // 4.2 再次查询Redis
+            String json = stringRedisTemplate.opsForValue().get(redisKey);
+            if (StrUtil.isNotBlank(json)) {
+                return JSONUtil.toBean(json, type);
+            }
+            if (json != null) {
+                return null;
+            }
+            // 4.3 从数据库查
+            R r = dbFallback.apply(id);
             if (r == null) {
                 //将空值写入redis
                 stringRedisTemplate.opsForValue().set(redisKey,"", CACHE_NULL_TTL, TimeUnit.MINUTES);
@@ -200,15 +438,84 @@ public class CacheClient {
             }
             // 6. 存在，写入缓存
             this.set(redisKey, r, time, unit);
+            return r;
+        });
+    }
+
+    /**
+     * 逻辑过期方案的冷加载：持锁后再次查询Redis，仍不存在时查库并写入逻辑过期数据，不存在的数据写入空值
+     */
+    private <R, ID> R loadColdWithLock(String redisKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return withLock(redisKey, () -> {
+            String json = stringRedisTemplate.opsForValue().get(redisKey);
+            if (StrUtil.isNotBlank(json)) {
+                RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+                return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            }
+            if (json != null) {
+                return null;
+            }
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(redisKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            this.setWithLogicExpire(redisKey, r, time, unit);
+            return r;
+        });
+    }
+
+    /**
+     * 持有跨节点互斥锁执行。Redisson锁释放时通过pub/sub通知等待者，不需要休眠轮询；
+     * 等待超时后不再等锁直接执行，避免锁持有者异常时请求长时间阻塞
+     */
+    private <T> T withLock(String redisKey, Supplier<T> action) {
+        // 4.1 获取互斥锁
+        RLock lock = redissonClient.getLock(LOCK_CACHE_KEY + redisKey);
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(LOCK_CACHE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
+        }
+        if (!isLock) {
+            log.warn("等待缓存重建锁超时, key={}", redisKey);
+        }
+        try {
+            return action.get();
+        } finally {
             // 7. 释放互斥锁
-            unlock(lockKey);
+            if (isLock) {
+                lock.unlock();
+            }
         }
+    }
 
-        // 8. 返回
-        return r;
+    /**
+     * 批量写入逻辑过期数据，一次管道提交
+     * @param values key -> 数据
+     * @param jitter 每个key的逻辑过期时间在time之外随机增加 [0, jitter]，避免同一批数据同时过期、同时重建
+     */
+    public void setWithLogicExpireBatch(Map<String, ?> values, Long time, Long jitter, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                long ttl = time + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+                RedisData redisData = new RedisData();
+                redisData.setData(entry.getValue());
+                redisData.setExpireTime(now.plusSeconds(unit.toSeconds(ttl)));
+                stringConnection.set(entry.getKey(), JSONUtil.toJsonStr(redisData));
+            }
+            return null;
+        });
+        for (String key : values.keySet()) {
+            evictLocal(key);
+        }
     }
 
     private boolean tryLock(String key){
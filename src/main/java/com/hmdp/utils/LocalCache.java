@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界的进程内缓存：按key哈希分段，每段是一个按访问顺序淘汰的LinkedHashMap，
+ * 超过容量淘汰最久未访问的条目，条目超过有效期后读取时移除
+ */
+public class LocalCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public LocalCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @return 缓存的值，未命中或已过期时为null
+     */
+    public Object get(String key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            if (entry.expireAt < System.currentTimeMillis()) {
+                segment.remove(key);
+                expiredEvictions.increment();
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    public void put(String key, Object value) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public void invalidate(String key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            if (segment.remove(key) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long sizeEvictionCount() {
+        return sizeEvictions.sum();
+    }
+
+    public long expiredEvictionCount() {
+        return expiredEvictions.sum();
+    }
+
+    public long invalidationCount() {
+        return invalidations.sum();
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private class Segment extends LinkedHashMap<String, Entry> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                sizeEvictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.Map;
+
+/**
+ * stream.orders消息编解码：订单压缩为单个字段 o = 版本号 + 36进制的 用户id,优惠券id,订单id，
+ * 如 "1a1,2,3jfv1kq0zk0"。编码在Java侧完成，Lua中的数字是double，无法精确表示64位订单id。
+ * 解码兼容早期的三字段消息（userId、voucherId、id）
+ */
+public final class OrderMessageCodec {
+
+    /**
+     * 消息中的字段名
+     */
+    public static final String FIELD = "o";
+
+    private static final char VERSION_1 = '1';
+    private static final int RADIX = 36;
+
+    private OrderMessageCodec() {
+    }
+
+    public static String encode(long userId, long voucherId, long orderId) {
+        return VERSION_1 + Long.toString(userId, RADIX)
+                + ',' + Long.toString(voucherId, RADIX)
+                + ',' + Long.toString(orderId, RADIX);
+    }
+
+    /**
+     * @param values stream消息的字段
+     * @return 订单，仅包含用户id、优惠券id和订单id
+     */
+    public static VoucherOrder decode(Map<?, ?> values) {
+        Object packed = values.get(FIELD);
+        if (packed == null) {
+            return decodeLegacy(values);
+        }
+        return decodeV1(packed.toString());
+    }
+
+    private static VoucherOrder decodeV1(String packed) {
+        if (packed.isEmpty() || packed.charAt(0) != VERSION_1) {
+            throw new IllegalArgumentException("未知的订单消息版本: " + packed);
+        }
+        int first = packed.indexOf(',');
+        int second = packed.indexOf(',', first + 1);
+        if (first < 0 || second < 0) {
+            throw new IllegalArgumentException("订单消息格式错误: " + packed);
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setUserId(Long.parseLong(packed.substring(1, first), RADIX));
+        voucherOrder.setVoucherId(Long.parseLong(packed.substring(first + 1, second), RADIX));
+        voucherOrder.setId(Long.parseLong(packed.substring(second + 1), RADIX));
+        return voucherOrder;
+    }
+
+    /**
+     * 版本0：userId、voucherId、id 三个十进制字段
+     */
+    private static VoucherOrder decodeLegacy(Map<?, ?> values) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setUserId(Long.valueOf(String.valueOf(values.get("userId"))));
+        voucherOrder.setVoucherId(Long.valueOf(String.valueOf(values.get("voucherId"))));
+        voucherOrder.setId(Long.valueOf(String.valueOf(values.get("id"))));
+        return voucherOrder;
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 裁剪stream.orders中所有消费者组都已确认的消息：边界取各组最早的pending消息id，
+ * 没有pending消息时取组的last-delivered-id，且保留最近一段时间内的消息。
+ * 裁剪前可选地追加写入本地按大小滚动的gzip归档文件，用于审计和重放
+ */
+@Slf4j
+@Component
+public class OrderStreamTrimmer {
+
+    private static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String ARCHIVE_PREFIX = "stream.orders-";
+    private static final String ARCHIVE_SUFFIX = ".log.gz";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${seckill.order.trim.enabled:true}")
+    private boolean enabled;
+
+    @Value("${seckill.order.trim.interval-ms:60000}")
+    private long intervalMillis;
+
+    /**
+     * 最近这段时间内的消息不裁剪，便于排查
+     */
+    @Value("${seckill.order.trim.retain-ms:600000}")
+    private long retainMillis;
+
+    /**
+     * 每次XRANGE/XDEL的消息数
+     */
+    @Value("${seckill.order.trim.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 每轮最多裁剪的消息数，避免单轮耗时超过调度锁有效期
+     */
+    @Value("${seckill.order.trim.max-per-run:100000}")
+    private int maxPerRun;
+
+    /**
+     * 归档目录，为空时不归档
+     */
+    @Value("${seckill.order.archive.dir:}")
+    private String archiveDir;
+
+    /**
+     * 单个归档文件超过该大小后滚动到新文件
+     */
+    @Value("${seckill.order.archive.max-file-bytes:67108864}")
+    private long maxFileBytes;
+
+    /**
+     * 最多保留的归档文件数
+     */
+    @Value("${seckill.order.archive.max-files:20}")
+    private int maxFiles;
+
+    private File currentArchive;
+
+    /**
+     * 每个周期只有抢到调度锁的一个节点执行，归档文件写在该节点本地
+     */
+    @Scheduled(initialDelayString = "${seckill.order.trim.interval-ms:60000}",
+            fixedDelayString = "${seckill.order.trim.interval-ms:60000}")
+    public void trim() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Boolean isLock = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_ORDER_TRIM_LOCK_KEY, "1", intervalMillis, TimeUnit.MILLISECONDS);
+            if (!BooleanUtil.isTrue(isLock)) {
+                return;
+            }
+            StreamId bound = safeBound();
+            if (bound == null) {
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            long trimmed = 0;
+            long archivedBytes = 0;
+            while (trimmed < maxPerRun) {
+                // 1.从头读取一批，已裁剪的消息不会再读到
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                        SECKILL_ORDER_STREAM,
+                        Range.of(Range.Bound.unbounded(), Range.Bound.inclusive(bound.toString())),
+                        Limit.limit().count(batchSize));
+                List<MapRecord<String, Object, Object>> expired = new ArrayList<>();
+                if (records != null) {
+                    for (MapRecord<String, Object, Object> record : records) {
+                        if (bound.covers(StreamId.parse(record.getId().getValue()))) {
+                            expired.add(record);
+                        }
+                    }
+                }
+                if (expired.isEmpty()) {
+                    break;
+                }
+                // 2.先归档再删除，归档失败时本轮不删除
+                if (StrUtil.isNotBlank(archiveDir)) {
+                    archivedBytes += archive(expired);
+                }
+                RecordId[] ids = new RecordId[expired.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = expired.get(i).getId();
+                }
+                stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM, ids);
+                trimmed += ids.length;
+                if (expired.size() < batchSize) {
+                    break;
+                }
+            }
+            if (trimmed > 0) {
+                long cost = Math.max(1, System.currentTimeMillis() - begin);
+                log.info("stream.orders裁剪 {} 条, 归档 {} 字节, 耗时 {} ms, {} 条/s, 剩余 {} 条",
+                        trimmed, archivedBytes, cost, trimmed * 1000 / cost,
+                        stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM));
+            }
+        } catch (Exception e) {
+            log.error("裁剪stream.orders异常", e);
+        }
+    }
+
+    /**
+     * 可以裁剪的最大消息id：各消费者组边界与保留时间边界中的最小值
+     * @return null表示没有可裁剪的消息
+     */
+    private StreamId safeBound() {
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(SECKILL_ORDER_STREAM))) {
+            return null;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM);
+        if (groups == null || groups.isEmpty()) {
+            // 没有消费者组时无法判断是否已消费，不裁剪
+            return null;
+        }
+        StreamId bound = new StreamId(System.currentTimeMillis() - retainMillis, Long.MAX_VALUE, true);
+        for (StreamInfo.XInfoGroup group : groups) {
+            StreamId groupBound;
+            if (group.pendingCount() > 0) {
+                // 最早的pending消息及之后的消息都要保留
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                        .pending(SECKILL_ORDER_STREAM, group.groupName());
+                groupBound = StreamId.parse(summary.minMessageId()).exclusive();
+            } else {
+                groupBound = StreamId.parse(group.lastDeliveredId());
+            }
+            if (groupBound.compareTo(bound) < 0) {
+                bound = groupBound;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * 每批一个gzip member追加到当前归档文件，多member的gzip文件可直接用zcat读取。
+     * 每行一条消息：消息id + \t + 字段JSON
+     */
+    private synchronized long archive(List<MapRecord<String, Object, Object>> records) throws IOException {
+        File file = rollIfNeeded();
+        long before = file.length();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file, true))) {
+            StringBuilder sb = new StringBuilder();
+            for (MapRecord<String, Object, Object> record : records) {
+                sb.append(record.getId().getValue()).append('\t')
+                        .append(JSONUtil.toJsonStr(record.getValue())).append('\n');
+            }
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return file.length() - before;
+    }
+
+    private File rollIfNeeded() throws IOException {
+        if (currentArchive != null && currentArchive.length() < maxFileBytes) {
+            return currentArchive;
+        }
+        File dir = new File(archiveDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建归档目录: " + dir.getAbsolutePath());
+        }
+        currentArchive = new File(dir, ARCHIVE_PREFIX + LocalDateTime.now().format(FILE_NAME_FORMATTER) + ARCHIVE_SUFFIX);
+        // 超过保留数量时删除最早的归档文件，文件名中的时间保证按名称排序即按时间排序
+        File[] files = dir.listFiles((d, name) -> name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX));
+        if (files != null && files.length >= maxFiles) {
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            for (int i = 0; i <= files.length - maxFiles; i++) {
+                if (!files[i].equals(currentArchive) && files[i].delete()) {
+                    log.info("删除过期归档文件 {}", files[i].getName());
+                }
+            }
+        }
+        return currentArchive;
+    }
+
+    /**
+     * stream消息id：毫秒时间戳-序号
+     */
+    private static class StreamId implements Comparable<StreamId> {
+        private final long millis;
+        private final long sequence;
+        /**
+         * 作为边界时是否包含自身
+         */
+        private final boolean inclusive;
+
+        StreamId(long millis, long sequence, boolean inclusive) {
+            this.millis = millis;
+            this.sequence = sequence;
+            this.inclusive = inclusive;
+        }
+
+        static StreamId parse(String id) {
+            int i = id.indexOf('-');
+            if (i < 0) {
+                return new StreamId(Long.parseLong(id), Long.MAX_VALUE, true);
+            }
+            return new StreamId(Long.parseLong(id.substring(0, i)), Long.parseLong(id.substring(i + 1)), true);
+        }
+
+        StreamId exclusive() {
+            return new StreamId(millis, sequence, false);
+        }
+
+        boolean covers(StreamId id) {
+            int c = id.compareTo(this);
+            return c < 0 || (c == 0 && inclusive);
+        }
+
+        @Override
+        public int compareTo(StreamId o) {
+            int c = Long.compare(millis, o.millis);
+            if (c != 0) {
+                return c;
+            }
+            c = Long.compare(sequence, o.sequence);
+            if (c != 0) {
+                return c;
+            }
+            // 同一id时，不包含自身的边界更小
+            return Boolean.compare(inclusive, o.inclusive);
+        }
+
+        @Override
+        public String toString() {
+            return sequence == Long.MAX_VALUE ? String.valueOf(millis) : millis + "-" + sequence;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 回收stream.orders中长时间未ACK的消息（消费者宕机、毒消息），超过最大投递次数后转入死信队列
+ */
+@Slf4j
+@Component
+public class PendingOrderReclaimer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderStatus voucherOrderStatus;
+
+    /**
+     * 消息空闲超过该时间才会被回收，需明显大于一次批量落库的耗时
+     */
+    @Value("${seckill.order.reclaim.min-idle-ms:30000}")
+    private long minIdleMillis;
+
+    /**
+     * 最大投递次数，超过后转入死信队列
+     */
+    @Value("${seckill.order.reclaim.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * 每轮最多检查的pending消息数
+     */
+    @Value("${seckill.order.reclaim.batch-size:100}")
+    private int batchSize;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * 本节点处理失败的原因，转入死信队列时一并记录
+     */
+    private final Map<String, String> failureReasons = new ConcurrentHashMap<>();
+
+    @Scheduled(initialDelayString = "${seckill.order.reclaim.interval-ms:5000}",
+            fixedDelayString = "${seckill.order.reclaim.interval-ms:5000}")
+    public void reclaim() {
+        try {
+            // 1.XPENDING 查询消费者组中最早的一批pending消息
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), batchSize);
+            if (pendingMessages == null || pendingMessages.isEmpty()) {
+                return;
+            }
+            // 2.筛选出空闲超时的消息，区分重试和死信
+            List<RecordId> retryIds = new ArrayList<>();
+            List<RecordId> deadIds = new ArrayList<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                    continue;
+                }
+                if (pendingMessage.getTotalDeliveryCount() >= maxAttempts) {
+                    deadIds.add(pendingMessage.getId());
+                } else {
+                    retryIds.add(pendingMessage.getId());
+                }
+            }
+            // 3.XCLAIM 接管并处理，其他节点同时回收时只有一个能claim成功
+            for (MapRecord<String, String, String> record : claim(retryIds)) {
+                retry(record);
+            }
+            for (MapRecord<String, String, String> record : claim(deadIds)) {
+                deadLetter(record);
+            }
+        } catch (Exception e) {
+            log.error("回收pending订单异常", e);
+        }
+    }
+
+    private void retry(MapRecord<String, String, String> record) {
+        String id = record.getId().getValue();
+        try {
+            VoucherOrder voucherOrder = OrderMessageCodec.decode(record.getValue());
+            voucherOrderService.createVoucherOrder(voucherOrder);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+            failureReasons.remove(id);
+            log.info("pending订单重试成功, id={}", id);
+        } catch (Exception e) {
+            // 保持pending，XCLAIM已累加投递次数，下一轮空闲超时后再重试
+            failureReasons.put(id, e.toString());
+            log.error("pending订单重试失败, id={}", id, e);
+        }
+    }
+
+    private void deadLetter(MapRecord<String, String, String> record) {
+        String id = record.getId().getValue();
+        String reason = failureReasons.remove(id);
+        Map<String, String> values = new HashMap<>(record.getValue());
+        values.put("originId", id);
+        values.put("reason", reason == null ? "超过最大投递次数" + maxAttempts : reason);
+        // 先写入死信队列再ACK，宕机时最多重复写一条死信
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(values).withStreamKey(SECKILL_ORDER_DLQ));
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+        try {
+            voucherOrderStatus.failed(OrderMessageCodec.decode(record.getValue()), "订单处理失败");
+        } catch (Exception e) {
+            // 无法解析的消息没有可更新的订单状态
+            log.error("死信消息无法解析, id={}", id, e);
+        }
+        log.error("订单转入死信队列, id={}, values={}", id, values);
+    }
+
+    private List<MapRecord<String, String, String>> claim(List<RecordId> ids) {
+        List<MapRecord<String, String, String>> records = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return records;
+        }
+        XClaimOptions options = XClaimOptions.minIdle(Duration.ofMillis(minIdleMillis))
+                .ids(ids.toArray(new RecordId[0]));
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(key(), SECKILL_ORDER_GROUP, consumerName(), options));
+        if (claimed == null) {
+            return records;
+        }
+        for (ByteRecord byteRecord : claimed) {
+            records.add(byteRecord.deserialize(StringRedisSerializer.UTF_8));
+        }
+        return records;
+    }
+
+    private byte[] key() {
+        return SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String consumerName() {
+        return NetUtil.getLocalHostName() + "-" + serverPort + "-reclaimer";
+    }
+}
@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 秒杀接口限流拦截器，路径中的id为优惠券id
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private SeckillRateLimiter seckillRateLimiter;
+
+    public RateLimitInterceptor(SeckillRateLimiter seckillRateLimiter) {
+        this.seckillRateLimiter = seckillRateLimiter;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.获取路径中的优惠券id
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (pathVariables == null || pathVariables.get("id") == null || UserHolder.getUser() == null) {
+            return true;
+        }
+        Long voucherId = Long.valueOf(pathVariables.get("id"));
+        // 2.获取许可
+        if (seckillRateLimiter.tryAcquire(voucherId, UserHolder.getUser().getId())) {
+            return true;
+        }
+        // 3.限流，返回429
+        response.setStatus(429);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")));
+        return false;
+    }
+}
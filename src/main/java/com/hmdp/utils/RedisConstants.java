@@ -10,12 +10,36 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOGIC_TTL = 20L;
+    public static final String CACHE_SHOP_HITS_KEY = "cache:shop:hits";
+    public static final Long CACHE_SHOP_HITS_TTL = 604800L;
     public static final String CACHE_SHOP_TYPE = "cache:shop:type";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_PUT_CHANNEL = "bloom:put";
+    public static final String BLOOM_SHOP = "shop";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final Long LOCK_CACHE_WAIT_MILLIS = 3000L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order";
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
+    public static final String SECKILL_QUEUE_KEY = "seckill:queue:";
+    public static final String SECKILL_QUEUES_KEY = "seckill:queues";
+    public static final String SECKILL_QUEUE_LOCK_KEY = "lock:seckill:queue";
+    public static final String SECKILL_PASS_KEY = "seckill:pass:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_TRIM_LOCK_KEY = "lock:stream.orders:trim";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_DEADLINE_KEY = "seckill:order:deadline";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,6 +1,7 @@
 package com.hmdp.utils;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Component;
@@ -10,6 +11,9 @@ import java.text.DateFormat;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author :珠代
@@ -24,9 +28,23 @@ public class RedisIdWorker {
     //序列号位数
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 每次从Redis租用的序列号段大小，大于1时开启号段模式：
+     * 一次INCRBY租用一段序列号，本地无锁分配，用完再租用下一段
+     */
+    @Value("${id-worker.lease-size:0}")
+    private int leaseSize;
+
+    /**
+     * keyPrefix -> 当前租用的号段
+     */
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
     public long nextId(String keyPrefix){
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -34,12 +52,80 @@ public class RedisIdWorker {
         long timeStamp = nowSeconds - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        long count = leaseSize > 1 ? nextLeasedCount(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         // 3.拼接并返回
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * 一次生成多个id，非号段模式下也只访问一次Redis（INCRBY count）
+     */
+    public long[] nextIds(String keyPrefix, int count) {
+        long[] ids = new long[count];
+        if (count == 0) {
+            return ids;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        if (leaseSize > 1) {
+            for (int i = 0; i < count; i++) {
+                ids[i] = timeStamp << COUNT_BITS | nextLeasedCount(keyPrefix, date);
+            }
+            return ids;
+        }
+        // 序列号 [end - count + 1, end]
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, count);
+        for (int i = 0; i < count; i++) {
+            ids[i] = timeStamp << COUNT_BITS | (end - count + 1 + i);
+        }
+        return ids;
+    }
+
+    /**
+     * 号段内分配序列号，号段用完或日期变化时才访问Redis
+     */
+    private long nextLeasedCount(String keyPrefix, String date) {
+        Segment segment = segments.get(keyPrefix);
+        if (segment != null && segment.date.equals(date)) {
+            long count = segment.next.getAndIncrement();
+            if (count <= segment.end) {
+                return count;
+            }
+        }
+        return renewSegment(keyPrefix, date);
+    }
+
+    private synchronized long renewSegment(String keyPrefix, String date) {
+        // 双重检查，其他线程可能已经租用了新号段
+        Segment segment = segments.get(keyPrefix);
+        if (segment != null && segment.date.equals(date)) {
+            long count = segment.next.getAndIncrement();
+            if (count <= segment.end) {
+                return count;
+            }
+        }
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, leaseSize);
+        // 号段 [end - leaseSize + 1, end]，第一个序列号直接返回
+        Segment renewed = new Segment(date, end - leaseSize + 2, end);
+        segments.put(keyPrefix, renewed);
+        return end - leaseSize + 1;
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong next;
+        private final long end;
+
+        Segment(String date, long next, long end) {
+            this.date = date;
+            this.next = new AtomicLong(next);
+            this.end = end;
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime now = LocalDateTime.now();
         long l = now.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 秒杀链路指标：脚本与id生成耗时、脚本结果码、订单落库批次与耗时、stream积压，
+ * 通过 /actuator/metrics 查看。stream相关指标由定时任务采集，访问指标接口时不访问Redis
+ */
+@Slf4j
+@Component
+public class SeckillMetrics {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private Timer scriptTimer;
+    private Timer basketScriptTimer;
+    private Timer idTimer;
+    private Timer persistTimer;
+    private DistributionSummary drainBatch;
+    private Counter drained;
+    private final Map<Integer, Counter> resultCounters = new ConcurrentHashMap<>();
+
+    private final AtomicLong streamLength = new AtomicLong();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        scriptTimer = scriptTimer("single");
+        basketScriptTimer = scriptTimer("basket");
+        idTimer = Timer.builder("seckill.id.generate")
+                .description("生成订单id的耗时")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        persistTimer = Timer.builder("seckill.order.persist")
+                .description("一批订单落库事务的耗时")
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        drainBatch = DistributionSummary.builder("seckill.order.drain.batch")
+                .description("每批落库的订单数")
+                .baseUnit("orders")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        drained = Counter.builder("seckill.order.drained")
+                .description("已落库并ACK的订单数，按时间求导即为落库速率")
+                .baseUnit("orders")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.length", streamLength, AtomicLong::get)
+                .description("stream.orders中的消息数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.pending", pendingCount, AtomicLong::get)
+                .description("消费者组中已投递未ACK的消息数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.stream.lag", lagMillis, AtomicLong::get)
+                .description("最新消息与消费者组已投递位置之间的时间差")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    private Timer scriptTimer(String script) {
+        return Timer.builder("seckill.script")
+                .description("秒杀Lua脚本的耗时")
+                .tag("script", script)
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public Timer scriptTimer() {
+        return scriptTimer;
+    }
+
+    public Timer basketScriptTimer() {
+        return basketScriptTimer;
+    }
+
+    public Timer idTimer() {
+        return idTimer;
+    }
+
+    public Timer persistTimer() {
+        return persistTimer;
+    }
+
+    /**
+     * 记录脚本结果码：0成功 1库存不足 2重复下单 3未开始 4已结束 5未排队放行 6限流
+     */
+    public void result(int code) {
+        resultCounters.computeIfAbsent(code, c -> Counter.builder("seckill.script.result")
+                .description("秒杀脚本各结果码的次数")
+                .tag("code", String.valueOf(c))
+                .register(meterRegistry)).increment();
+    }
+
+    public void drained(int count) {
+        drainBatch.record(count);
+        drained.increment(count);
+    }
+
+    /**
+     * 采集stream长度、pending数量和消费延迟
+     */
+    @Scheduled(fixedDelayString = "${seckill.metrics.stream-interval-ms:5000}")
+    public void collectStream() {
+        try {
+            Boolean exists = stringRedisTemplate.hasKey(SECKILL_ORDER_STREAM);
+            if (exists == null || !exists) {
+                return;
+            }
+            StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(SECKILL_ORDER_STREAM);
+            streamLength.set(info.streamLength());
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+            pendingCount.set(summary == null ? 0 : summary.getTotalPendingMessages());
+            for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM)) {
+                if (SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                    // 尚未投递过消息时，从第一条消息开始计算
+                    long delivered = millis(group.lastDeliveredId());
+                    if (delivered == 0 && info.firstEntryId() != null) {
+                        delivered = millis(info.firstEntryId());
+                    }
+                    lagMillis.set(Math.max(0, millis(info.lastGeneratedId()) - delivered));
+                }
+            }
+        } catch (Exception e) {
+            log.error("采集stream.orders指标异常", e);
+        }
+    }
+
+    /**
+     * stream消息id中的毫秒时间戳
+     */
+    private static long millis(String streamId) {
+        int i = streamId.indexOf('-');
+        return Long.parseLong(i < 0 ? streamId : streamId.substring(0, i));
+    }
+}
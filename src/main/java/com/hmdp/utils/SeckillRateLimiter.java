@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 秒杀接口的令牌桶限流：先经过节点内的令牌桶预过滤，再由Redis令牌桶按优惠券、按用户做集群级限流
+ */
+@Component
+public class SeckillRateLimiter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${seckill.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个优惠券集群内每秒放行的请求数及突发容量
+     */
+    @Value("${seckill.rate-limit.voucher-permits-per-second:2000}")
+    private double voucherPermits;
+    @Value("${seckill.rate-limit.voucher-burst:2000}")
+    private double voucherBurst;
+
+    /**
+     * 每个用户每秒放行的请求数及突发容量
+     */
+    @Value("${seckill.rate-limit.user-permits-per-second:1}")
+    private double userPermits;
+    @Value("${seckill.rate-limit.user-burst:2}")
+    private double userBurst;
+
+    /**
+     * 每个优惠券本节点每秒最多转发给Redis的请求数，超出的请求不离开JVM
+     */
+    @Value("${seckill.rate-limit.local-permits-per-second:2000}")
+    private double localPermits;
+
+    /**
+     * 本节点最多保留的优惠券令牌桶数，请求中的优惠券id来自路径参数，不能无限增长
+     */
+    @Value("${seckill.rate-limit.local-max-vouchers:10000}")
+    private int localMaxVouchers;
+
+    /**
+     * 令牌桶空闲超过该时间后移除
+     */
+    private static final long LOCAL_BUCKET_IDLE_MILLIS = 60000;
+
+    private final Map<Long, LocalTokenBucket> localBuckets = new ConcurrentHashMap<>();
+
+    private Counter localRejected;
+    private Counter voucherRejected;
+    private Counter userRejected;
+
+    @PostConstruct
+    private void init() {
+        localRejected = rejectedCounter("local");
+        voucherRejected = rejectedCounter("voucher");
+        userRejected = rejectedCounter("user");
+        limitGauge("local", localPermits);
+        limitGauge("voucher", voucherPermits);
+        limitGauge("user", userPermits);
+    }
+
+    /**
+     * 尝试获取一个秒杀请求许可
+     * @return true放行 false限流
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        return tryAcquire(Collections.singletonList(voucherId), userId);
+    }
+
+    /**
+     * 一次获取多个优惠券的秒杀请求许可，所有优惠券与用户的令牌桶在一次脚本调用中同时扣减
+     * @return true全部放行 false任一被限流，此时Redis中的令牌桶都不扣减
+     */
+    public boolean tryAcquire(Collection<Long> voucherIds, Long userId) {
+        if (!enabled || voucherIds.isEmpty()) {
+            return true;
+        }
+        // 1.节点内预过滤
+        for (Long voucherId : voucherIds) {
+            LocalTokenBucket bucket = localBucket(voucherId);
+            if (bucket != null && !bucket.tryAcquire()) {
+                localRejected.increment();
+                return false;
+            }
+        }
+        // 2.Redis令牌桶，每个优惠券的优惠券桶与用户桶原子扣减
+        List<String> keys = new ArrayList<>(voucherIds.size() * 2);
+        List<String> args = new ArrayList<>(voucherIds.size() * 4 + 1);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        for (Long voucherId : voucherIds) {
+            keys.add(RATE_LIMIT_KEY + "voucher:" + voucherId);
+            keys.add(RATE_LIMIT_KEY + "user:" + voucherId + ":" + userId);
+            args.add(String.valueOf(voucherPermits));
+            args.add(String.valueOf(voucherBurst));
+            args.add(String.valueOf(userPermits));
+            args.add(String.valueOf(userBurst));
+        }
+        Long result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, keys, args.toArray());
+        int r = result == null ? 0 : result.intValue();
+        if (r == 0) {
+            return true;
+        }
+        // 返回的是被限流的桶序号，奇数为优惠券桶，偶数为用户桶
+        if (r % 2 == 1) {
+            voucherRejected.increment();
+        } else {
+            userRejected.increment();
+        }
+        return false;
+    }
+
+    /**
+     * @return 优惠券的本节点令牌桶，桶数已达上限时为null，只由Redis令牌桶限流
+     */
+    private LocalTokenBucket localBucket(Long voucherId) {
+        LocalTokenBucket bucket = localBuckets.get(voucherId);
+        if (bucket == null && localBuckets.size() < localMaxVouchers) {
+            bucket = localBuckets.computeIfAbsent(voucherId, k -> new LocalTokenBucket(localPermits));
+        }
+        return bucket;
+    }
+
+    /**
+     * 移除空闲的令牌桶，空闲期间令牌早已补满，重新创建的桶与原来等价
+     */
+    @Scheduled(fixedDelay = LOCAL_BUCKET_IDLE_MILLIS)
+    public void evictIdleBuckets() {
+        long now = System.currentTimeMillis();
+        localBuckets.values().removeIf(bucket -> bucket.idleMillis(now) > LOCAL_BUCKET_IDLE_MILLIS);
+    }
+
+    private Counter rejectedCounter(String scope) {
+        return Counter.builder("seckill.rate.limit.rejected")
+                .description("秒杀请求被限流的次数")
+                .tag("scope", scope)
+                .register(meterRegistry);
+    }
+
+    private void limitGauge(String scope, double permits) {
+        Gauge.builder("seckill.rate.limit.permits", () -> permits)
+                .description("配置的每秒放行请求数")
+                .tag("scope", scope)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 节点内令牌桶，容量等于每秒速率
+     */
+    private static class LocalTokenBucket {
+        private final double permitsPerMilli;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+
+        LocalTokenBucket(double permitsPerSecond) {
+            this.permitsPerMilli = permitsPerSecond / 1000;
+            this.capacity = permitsPerSecond;
+            this.tokens = permitsPerSecond;
+        }
+
+        synchronized long idleMillis(long now) {
+            return now - lastRefill;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerMilli);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_PASS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 分段库存：热点优惠券的库存拆成K段，每段的库存、已购用户和起止时间副本带相同的hash tag {优惠券id:分段号}，
+ * 集群中各段落在不同的slot上，请求按用户分散到各段。
+ * 用户固定属于 userId % K 段，一人一单只在该段的已购用户集合中判断，分段之间互不重叠；
+ * 所属分段没有库存时，已购用户仍记录在所属分段，只从其他分段扣减库存，全部没有库存时撤销已购用户。
+ * 分段模式下已购用户只使用集合，不使用位图
+ */
+@Component
+public class SegmentedStock {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT;
+    static {
+        SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SEGMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 库存分段数，大于1时开启分段模式
+     */
+    @Value("${seckill.stock.segments:1}")
+    private int segments;
+
+    @Value("${seckill.stock.lease-size:0}")
+    private int leaseSize;
+
+    @PostConstruct
+    private void init() {
+        if (isEnabled() && leaseSize > 0) {
+            throw new IllegalStateException("seckill.stock.segments 与 seckill.stock.lease-size 不能同时开启");
+        }
+    }
+
+    public boolean isEnabled() {
+        return segments > 1;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * 用户所属的分段
+     */
+    public int segmentOf(Long userId) {
+        return (int) Math.floorMod(userId, (long) segments);
+    }
+
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + hashTag(voucherId, segment);
+    }
+
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + hashTag(voucherId, segment);
+    }
+
+    public static String windowKey(Long voucherId, int segment) {
+        return SECKILL_WINDOW_KEY + hashTag(voucherId, segment);
+    }
+
+    private static String hashTag(Long voucherId, int segment) {
+        return "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 秒杀一个优惠券，成功时写入订单消息和订单状态
+     * @param waitingRoom 是否开启排队，开启时必须持有放行凭证
+     * @return 与seckill.lua相同的结果码：0成功 1库存不足 2重复下单 3未开始 4已结束 5未排队放行
+     */
+    public int seckill(Long voucherId, Long userId, long orderId, String message, long statusTtl, boolean waitingRoom) {
+        // 1.放行凭证与分段不在同一个slot，在脚本之外判断
+        if (waitingRoom && !BooleanUtil.isTrue(
+                stringRedisTemplate.hasKey(SECKILL_PASS_KEY + voucherId + ":" + userId))) {
+            return 5;
+        }
+        // 2.在所属分段下单
+        int home = segmentOf(userId);
+        int r = execute(voucherId, home, "buy", userId);
+        if (r == 1) {
+            // 3.所属分段没有库存，依次从其他分段扣减，已购用户仍留在所属分段
+            r = takeElsewhere(voucherId, home);
+            if (r != 0) {
+                execute(voucherId, home, "undo", userId);
+            }
+        }
+        if (r != 0) {
+            return r;
+        }
+        // 4.发送消息到队列中，订单状态：排队中
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.xAdd(SECKILL_ORDER_STREAM, Collections.singletonMap("o", message));
+            stringRedisConnection.setEx(VoucherOrderStatus.key(userId, orderId), statusTtl, VoucherOrderStatus.QUEUED);
+            return null;
+        });
+        return 0;
+    }
+
+    private int takeElsewhere(Long voucherId, int home) {
+        for (int i = 1; i < segments; i++) {
+            if (execute(voucherId, (home + i) % segments, "take", null) == 0) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    private int execute(Long voucherId, int segment, String op, Long userId) {
+        Long r = stringRedisTemplate.execute(SEGMENT_SCRIPT,
+                Arrays.asList(stockKey(voucherId, segment), orderKey(voucherId, segment), windowKey(voucherId, segment)),
+                op, userId == null ? "" : userId.toString(), String.valueOf(System.currentTimeMillis()));
+        return r == null ? 1 : r.intValue();
+    }
+
+    /**
+     * 库存平均拆分到各分段，余数放在前面的分段
+     * @param overwrite false时只补齐不存在的分段，已存在的分段可能已被扣减
+     * @return 是否写入了至少一个分段
+     */
+    public boolean save(Long voucherId, int stock, boolean overwrite) {
+        boolean saved = false;
+        for (int i = 0; i < segments; i++) {
+            String value = String.valueOf(stock / segments + (i < stock % segments ? 1 : 0));
+            if (overwrite) {
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), value);
+                saved = true;
+            } else if (BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), value))) {
+                saved = true;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * 每个分段保存一份秒杀起止时间，脚本只读取本分段的副本
+     */
+    public void saveWindow(Long voucherId, Map<String, String> window, Date expireAt) {
+        for (int i = 0; i < segments; i++) {
+            stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, i), window);
+            stringRedisTemplate.expireAt(windowKey(voucherId, i), expireAt);
+        }
+    }
+
+    public void expireAt(Long voucherId, Date expireAt) {
+        for (int i = 0; i < segments; i++) {
+            stringRedisTemplate.expireAt(stockKey(voucherId, i), expireAt);
+            stringRedisTemplate.expireAt(orderKey(voucherId, i), expireAt);
+        }
+    }
+
+    /**
+     * 取消订单后把库存归还到用户所属的分段
+     */
+    public void giveBack(Long voucherId, Long userId) {
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, segmentOf(userId)));
+    }
+
+    /**
+     * 已购用户按所属分段写入，SADD本身是幂等的
+     */
+    public void addBuyers(Long voucherId, Collection<Long> userIds) {
+        Map<Integer, List<String>> buyersOfSegment = new HashMap<>();
+        for (Long userId : userIds) {
+            buyersOfSegment.computeIfAbsent(segmentOf(userId), k -> new ArrayList<>()).add(userId.toString());
+        }
+        for (Map.Entry<Integer, List<String>> entry : buyersOfSegment.entrySet()) {
+            stringRedisTemplate.opsForSet().add(orderKey(voucherId, entry.getKey()), entry.getValue().toArray(new String[0]));
+        }
+    }
+
+    /**
+     * 各分段剩余库存之和
+     * @return null表示所有分段都不存在
+     */
+    public Long stock(Long voucherId) {
+        Long total = null;
+        for (int i = 0; i < segments; i++) {
+            String stock = stringRedisTemplate.opsForValue().get(stockKey(voucherId, i));
+            if (stock != null) {
+                total = (total == null ? 0 : total) + Long.parseLong(stock);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 各分段已购用户数之和
+     */
+    public Long buyers(Long voucherId) {
+        long total = 0;
+        for (int i = 0; i < segments; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(orderKey(voucherId, i));
+            if (size == null) {
+                return null;
+            }
+            total += size;
+        }
+        return total;
+    }
+}
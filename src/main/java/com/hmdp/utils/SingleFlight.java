@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 节点内请求合并：同一个key同时只有一个线程执行加载，其他线程等待同一个结果，
+ * 加载完成后立即移除，下一次调用重新加载
+ */
+@Component
+public class SingleFlight {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 等待其他线程加载结果的最长时间，超时后请求失败，不会一直占用请求线程
+     */
+    @Value("${cache.singleflight.wait-timeout-ms:3000}")
+    private long waitTimeoutMillis;
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private Timer loadTimer;
+    private DistributionSummary waiters;
+    private Counter timeouts;
+
+    @PostConstruct
+    private void init() {
+        loadTimer = Timer.builder("cache.singleflight.load")
+                .description("合并后实际执行一次加载的耗时")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        waiters = DistributionSummary.builder("cache.singleflight.waiters")
+                .description("每次加载期间合并等待的请求数")
+                .register(meterRegistry);
+        timeouts = Counter.builder("cache.singleflight.wait.timeouts")
+                .description("等待加载结果超时的请求数")
+                .register(meterRegistry);
+        Gauge.builder("cache.singleflight.inflight", flights, Map::size)
+                .description("正在加载的key数量")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 执行或等待key对应的加载，加载抛出的异常同样传给所有等待者，等待超时时抛出异常
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            // 已有线程在加载，等待其结果
+            existing.waiters.incrementAndGet();
+            return (T) await(key, existing);
+        }
+        long begin = System.nanoTime();
+        try {
+            T value = loader.get();
+            flight.future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // 包括Error，保证等待者不会永远阻塞
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            loadTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            waiters.record(flight.waiters.get());
+        }
+    }
+
+    private Object await(String key, Flight flight) {
+        try {
+            return flight.future.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("加载失败: " + key, cause);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            throw new IllegalStateException("等待加载超时: " + key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待加载被中断: " + key);
+        }
+    }
+
+    private static class Flight {
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 节点内的秒杀售罄标记，售罄后的请求直接在JVM内拒绝，不再访问Redis。
+ * 标记通过pub/sub广播到其他节点，补充库存时清除；pub/sub不保证送达，因此标记带有效期，过期后重新由脚本判断
+ */
+@Slf4j
+@Component
+public class SoldOutCache implements MessageListener {
+
+    private static final String SOLD_OUT = "1:";
+    private static final String CLEAR = "0:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 售罄标记的有效期
+     */
+    @Value("${seckill.sold-out.ttl-ms:10000}")
+    private long ttlMillis;
+
+    /**
+     * voucherId -> 标记过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+    }
+
+    /**
+     * 库存补充后清除售罄标记并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(2));
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.error("无法解析售罄通知: {}", body, e);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 节点租用秒杀库存：一次从Redis租用一批库存，本节点内无锁扣减，
+ * 热点优惠券的库存判断不再集中到同一个Redis key。一人一单仍由seckill.lua在Redis中保证。
+ * 秒杀结束或节点关闭时归还未使用的库存
+ */
+@Slf4j
+@Component
+public class StockLease {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 每次租用的库存数量，大于0时开启租用模式
+     */
+    @Value("${seckill.stock.lease-size:0}")
+    private int leaseSize;
+
+    /**
+     * Redis中库存已租完后，多久之后再尝试租用（其他节点可能归还）
+     */
+    @Value("${seckill.stock.lease-retry-ms:1000}")
+    private long retryMillis;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return leaseSize > 0;
+    }
+
+    /**
+     * 从本节点租用的库存中预扣一个
+     * @return false表示本节点及Redis中都没有库存
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        if (lease.tryTake()) {
+            return true;
+        }
+        return renew(voucherId, lease);
+    }
+
+    /**
+     * 预扣后未能下单（重复下单、不在秒杀时间内等），退回本节点；租约已归还时直接退回Redis
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            synchronized (lease) {
+                if (!lease.closed) {
+                    lease.stock.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        returnStock(voucherId, 1);
+    }
+
+    private boolean renew(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            // 双重检查，其他线程可能已经续租
+            if (lease.tryTake()) {
+                return true;
+            }
+            // 租约已归还（秒杀已结束），不再续租
+            if (lease.closed) {
+                return false;
+            }
+            if (System.currentTimeMillis() < lease.retryAt) {
+                return false;
+            }
+            Long leased = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(leaseSize));
+            if (leased == null || leased <= 0) {
+                lease.retryAt = System.currentTimeMillis() + retryMillis;
+                return false;
+            }
+            // 自己先用掉一个，其余放入本节点
+            lease.stock.addAndGet(leased.intValue() - 1);
+            return true;
+        }
+    }
+
+    /**
+     * 秒杀结束后归还未使用的库存
+     */
+    @Scheduled(fixedDelayString = "${seckill.stock.lease-check-ms:10000}")
+    public void returnExpired() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Long voucherId : leases.keySet()) {
+            try {
+                Object end = stringRedisTemplate.opsForHash().get(SECKILL_WINDOW_KEY + voucherId, "end");
+                if (end != null && now > Long.parseLong(end.toString())) {
+                    giveBack(voucherId);
+                }
+            } catch (Exception e) {
+                log.error("归还租用库存异常, voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        for (Long voucherId : leases.keySet()) {
+            try {
+                giveBack(voucherId);
+            } catch (Exception e) {
+                log.error("归还租用库存异常, voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 先从map中移除租约再归还被移除的实例，并标记为已关闭，
+     * 之后的续租和退回不会再写入这个实例，避免归还后又有库存留在本节点
+     */
+    private void giveBack(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease == null) {
+            return;
+        }
+        int left;
+        synchronized (lease) {
+            lease.closed = true;
+            left = lease.stock.getAndSet(0);
+        }
+        if (left > 0) {
+            returnStock(voucherId, left);
+            log.info("归还租用库存, voucherId={}, stock={}", voucherId, left);
+        }
+    }
+
+    private void returnStock(Long voucherId, int count) {
+        stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(-count));
+    }
+
+    private static class Lease {
+        private final AtomicInteger stock = new AtomicInteger();
+        private volatile long retryAt;
+        /**
+         * 已归还，由giveBack在持有锁时设置
+         */
+        private volatile boolean closed;
+
+        boolean tryTake() {
+            for (;;) {
+                int current = stock.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (stock.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
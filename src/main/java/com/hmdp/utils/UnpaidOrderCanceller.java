@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DEADLINE_KEY;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+
+/**
+ * 超时未支付订单的延迟取消：订单落库后按支付截止时间放入Redis有序集合，
+ * 定时取出到期订单批量取消，并归还数据库和Redis中的库存。
+ * 已取消的订单仍占用一人一单的唯一索引，因此不归还用户的下单资格
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("cancel_order.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 支付超时时间
+     */
+    @Value("${seckill.order.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+
+    /**
+     * 每轮最多取消的订单数
+     */
+    @Value("${seckill.order.cancel-batch-size:200}")
+    private int batchSize;
+
+    /**
+     * 订单落库后登记支付截止时间
+     */
+    public void schedule(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        String deadline = String.valueOf(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                // 重放的订单不改变截止时间
+                stringRedisConnection.execute("ZADD", SECKILL_ORDER_DEADLINE_KEY, "NX", deadline, orderId.toString());
+            }
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.order.cancel-interval-ms:5000}")
+    public void cancelExpired() {
+        try {
+            while (cancelBatch() == batchSize) {
+                // 一批取满说明可能还有到期订单，继续取消
+            }
+        } catch (Exception e) {
+            log.error("取消超时订单异常", e);
+        }
+    }
+
+    private int cancelBatch() {
+        // 1.取出到期的订单
+        Set<String> due = stringRedisTemplate.opsForZSet()
+                .rangeByScore(SECKILL_ORDER_DEADLINE_KEY, 0, System.currentTimeMillis(), 0, batchSize);
+        if (due == null || due.isEmpty()) {
+            return 0;
+        }
+        List<Long> orderIds = new ArrayList<>(due.size());
+        for (String id : due) {
+            orderIds.add(Long.valueOf(id));
+        }
+        // 2.数据库中取消未支付订单并归还库存
+        List<VoucherOrder> orders = voucherOrderService.cancelUnpaidOrders(orderIds);
+        // 3.已取消的订单归还Redis库存；已支付或不存在的订单直接移出延迟队列
+        Set<String> handled = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            if (!VOUCHER_ORDER_CANCELLED.equals(order.getStatus())) {
+                continue;
+            }
+            handled.add(order.getId().toString());
+            Long returned = segmentedStock.isEnabled() ? returnSegmentStock(order)
+                    : stringRedisTemplate.execute(CANCEL_SCRIPT, Collections.emptyList(),
+                    order.getId().toString(), order.getVoucherId().toString());
+            if (returned != null && returned == 1) {
+                soldOutCache.clear(order.getVoucherId());
+                log.info("超时未支付订单已取消, id={}", order.getId());
+            }
+        }
+        due.removeAll(handled);
+        if (!due.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_DEADLINE_KEY, due.toArray());
+        }
+        return orderIds.size();
+    }
+
+    /**
+     * 分段模式下延迟队列与分段库存不在同一个slot，以ZREM的结果保证只归还一次，库存归还到用户所属的分段
+     */
+    private Long returnSegmentStock(VoucherOrder order) {
+        Long removed = stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_DEADLINE_KEY, order.getId().toString());
+        if (removed == null || removed == 0) {
+            return 0L;
+        }
+        segmentedStock.giveBack(order.getVoucherId(), order.getUserId());
+        return 1L;
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单处理状态，保存在Redis中供客户端轮询，不访问数据库。
+ * key为 seckill:order:status:<用户id>:<订单id>，只能查询自己的订单；
+ * 取值为 0（排队中，由seckill.lua写入）、1（已创建）、2:原因（失败）
+ */
+@Component
+public class VoucherOrderStatus {
+
+    public static final String QUEUED = "0";
+    public static final String CREATED = "1";
+    public static final String FAILED = "2";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${seckill.order.status-ttl-seconds:1800}")
+    private long ttlSeconds;
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public static String key(Long userId, long orderId) {
+        return SECKILL_ORDER_STATUS_KEY + userId + ":" + orderId;
+    }
+
+    /**
+     * 批量标记为已创建，一次pipeline写入
+     */
+    public void created(Collection<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                stringRedisConnection.setEx(key(voucherOrder.getUserId(), voucherOrder.getId()), ttlSeconds, CREATED);
+            }
+            return null;
+        });
+    }
+
+    public void failed(VoucherOrder voucherOrder, String reason) {
+        stringRedisTemplate.opsForValue().set(key(voucherOrder.getUserId(), voucherOrder.getId()),
+                FAILED + ":" + reason, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 查询用户自己的订单状态
+     * @return null表示不存在、已过期或不属于该用户
+     */
+    public Map<String, Object> get(Long userId, Long orderId) {
+        String value = stringRedisTemplate.opsForValue().get(key(userId, orderId));
+        if (value == null) {
+            return null;
+        }
+        Map<String, Object> status = new HashMap<>(3);
+        status.put("orderId", orderId);
+        if (value.startsWith(FAILED)) {
+            status.put("status", "failed");
+            status.put("reason", value.length() > 2 ? value.substring(2) : "");
+        } else {
+            status.put("status", CREATED.equals(value) ? "created" : "queued");
+        }
+        return status;
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀排队：用户先领取排队号进入有序集合，调度器按固定速率从队首放行，
+ * 只有持有放行凭证的用户才能调用秒杀接口（由seckill.lua校验）
+ */
+@Slf4j
+@Component
+public class WaitingRoom {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("waiting_room.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> ENTER_SCRIPT;
+    static {
+        ENTER_SCRIPT = new DefaultRedisScript<>();
+        ENTER_SCRIPT.setLocation(new ClassPathResource("waiting_room_enter.lua"));
+        ENTER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 每个优惠券每秒放行人数
+     */
+    @Value("${seckill.waiting-room.admit-per-second:500}")
+    private int admitPerSecond;
+
+    @Value("${seckill.waiting-room.admit-interval-ms:200}")
+    private long admitIntervalMillis;
+
+    /**
+     * 放行凭证有效期
+     */
+    @Value("${seckill.waiting-room.pass-ttl-seconds:60}")
+    private long passTtlSeconds;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 领取排队号，重复排队不会改变位置
+     * @return 当前排队位置，从0开始；秒杀券不存在或已结束时为null
+     */
+    public Map<String, Object> enter(Long voucherId, Long userId) {
+        Long position = stringRedisTemplate.execute(ENTER_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()));
+        if (position == null || position == -1) {
+            return null;
+        }
+        Map<String, Object> status = new HashMap<>(2);
+        if (position == -2) {
+            status.put("admitted", true);
+            return status;
+        }
+        status.put("admitted", false);
+        status.put("position", position);
+        return status;
+    }
+
+    /**
+     * 查询排队状态：已放行，或在队列中的位置
+     */
+    public Map<String, Object> status(Long voucherId, Long userId) {
+        Map<String, Object> status = new HashMap<>(2);
+        Long position = stringRedisTemplate.opsForZSet().rank(SECKILL_QUEUE_KEY + voucherId, userId.toString());
+        if (position != null) {
+            status.put("admitted", false);
+            status.put("position", position);
+            return status;
+        }
+        status.put("admitted", BooleanUtil.isTrue(stringRedisTemplate.hasKey(passKey(voucherId, userId))));
+        return status;
+    }
+
+    /**
+     * 按速率放行，每个周期只有抢到调度锁的一个节点执行，保证集群整体放行速率
+     */
+    @Scheduled(fixedRateString = "${seckill.waiting-room.admit-interval-ms:200}")
+    public void admit() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Boolean isLock = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_QUEUE_LOCK_KEY, "1", admitIntervalMillis, TimeUnit.MILLISECONDS);
+            if (!BooleanUtil.isTrue(isLock)) {
+                return;
+            }
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_QUEUES_KEY);
+            if (voucherIds == null) {
+                return;
+            }
+            long batch = Math.max(1, admitPerSecond * admitIntervalMillis / 1000);
+            for (String voucherId : voucherIds) {
+                stringRedisTemplate.execute(ADMIT_SCRIPT, Collections.emptyList(),
+                        voucherId, String.valueOf(batch), String.valueOf(passTtlSeconds));
+            }
+        } catch (Exception e) {
+            log.error("排队放行异常", e);
+        }
+    }
+
+    private static String passKey(Long voucherId, Long userId) {
+        return SECKILL_PASS_KEY + voucherId + ":" + userId;
+    }
+}
@@ -0,0 +1,14 @@
+-- 取消订单后归还Redis中的库存，以延迟队列中的订单为准保证只归还一次。
+-- 已取消的订单仍占用 (user_id, voucher_id) 唯一索引，用户保持已购状态，不能再次秒杀同一优惠券
+-- ARGV[1]: 订单id
+-- ARGV[2]: 优惠券id
+local orderId = ARGV[1]
+local voucherId = ARGV[2]
+
+-- 1.从延迟队列中移除，已移除说明已经归还过
+if (redis.call('zrem', 'seckill:order:deadline', orderId) == 0) then
+    return 0
+end
+-- 2.归还库存
+redis.call('incrby', 'seckill:stock:' .. voucherId, 1)
+return 1
@@ -0,0 +1,30 @@
+-- 令牌桶限流，所有桶都有令牌时才同时扣减
+-- KEYS[i]: 令牌桶key
+-- ARGV[1]: 当前时间（毫秒）
+-- ARGV[2i], ARGV[2i+1]: 第i个桶的速率（个/秒）、容量
+local now = tonumber(ARGV[1])
+local tokens = {}
+
+-- 1.按时间补充令牌，判断每个桶是否有令牌
+for i, key in ipairs(KEYS) do
+    local rate = tonumber(ARGV[i * 2])
+    local capacity = tonumber(ARGV[i * 2 + 1])
+    local bucket = redis.call('hmget', key, 'tokens', 'ts')
+    local left = tonumber(bucket[1]) or capacity
+    local ts = tonumber(bucket[2]) or now
+    left = math.min(capacity, left + math.max(0, now - ts) * rate / 1000)
+    if (left < 1) then
+        -- 返回被限流的桶序号
+        return i
+    end
+    tokens[i] = left
+end
+
+-- 2.扣减令牌，桶补满后自动过期
+for i, key in ipairs(KEYS) do
+    local rate = tonumber(ARGV[i * 2])
+    local capacity = tonumber(ARGV[i * 2 + 1])
+    redis.call('hset', key, 'tokens', tokens[i] - 1, 'ts', now)
+    redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+end
+return 0
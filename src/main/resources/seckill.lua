@@ -1,33 +1,89 @@
+-- 秒杀下单，一次脚本调用为同一用户秒杀一个或多个优惠券，单券秒杀即数量为1的情况。
+-- 各优惠券独立判断，成功的扣减库存并写入stream.orders，返回每个优惠券的结果码：
+-- 0成功 1库存不足 2重复下单 3未开始 4已结束 5未排队放行
 -- 1.参数列表
--- 1.1。优惠券id
-local voucherId = ARGV[1]
--- 1.2. 用户id
-local userId = ARGV[2]
--- 1.3.订单id
-local orderId = ARGV[3]
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.当前时间（毫秒）
+local now = tonumber(ARGV[2])
+-- 1.3.是否开启排队，开启时必须持有放行凭证
+local waitingRoom = ARGV[3] == '1'
+-- 1.4.订单状态有效期（秒）
+local statusTtl = tonumber(ARGV[4])
+-- 1.5.位图去重的最大用户id，用户id不超过该值时用位图记录已购用户，超过或为0时使用集合
+local bitmapMax = math.min(tonumber(ARGV[5]) or 0, 4294967295)
+-- 1.6.优惠券数量，之后每个优惠券4个参数：
+-- 优惠券id、订单id、库存是否已由本节点租用的库存预扣（预扣时不再检查和扣减Redis库存）、由Java编码好的订单消息（OrderMessageCodec）
+local count = tonumber(ARGV[6])
 
--- 2.数据key
---2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
---2.2.订单id
-local orderKey = 'seckill:order' .. voucherId
+local useBitmap = tonumber(userId) <= bitmapMax
 
--- 3.脚本业务
--- 3.1.判断库存是否充足
-if(tonumber(redis.call('get',stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 时间和订单状态有效期必须有效，否则无法校验秒杀时间
+if (now == nil or statusTtl == nil or count == nil) then
+    return redis.error_reply('invalid seckill arguments')
 end
---3.2. 判断用户是否下单
-if (redis.call('sismember',orderKey,userId) == 1) then
-    -- 3.3. 存在，重复下单，返回2
-    return 2
+
+local function buy(voucherId, orderId, reserved, message)
+    -- 2.数据key
+    -- 2.1.库存key
+    local stockKey = 'seckill:stock:' .. voucherId
+    -- 2.2.已购用户集合
+    local orderKey = 'seckill:order' .. voucherId
+    -- 2.3.已购用户位图，offset为用户id
+    local buyersKey = 'seckill:buyers:' .. voucherId
+
+    -- 3.判断是否在秒杀时间内，起止时间随秒杀结束过期，不存在时视为已结束
+    local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+    if (not window[1] or not window[2]) then
+        return 4
+    end
+    if (now < tonumber(window[1])) then
+        -- 尚未开始，返回3
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 已经结束，返回4
+        return 4
+    end
+    -- 4.排队模式下判断是否已被放行
+    if (waitingRoom and redis.call('exists', 'seckill:pass:' .. voucherId .. ':' .. userId) == 0) then
+        -- 未放行，返回5
+        return 5
+    end
+    -- 5.判断库存是否充足
+    if (reserved) then
+        stockKey = nil
+    elseif ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        -- 库存不足，返回1
+        return 1
+    end
+    -- 6.判断用户是否下单，位图模式下也检查集合，兼容开启位图前已下单的用户
+    if ((useBitmap and redis.call('getbit', buyersKey, userId) == 1)
+            or redis.call('sismember', orderKey, userId) == 1) then
+        -- 重复下单，返回2
+        return 2
+    end
+
+    -- 7.扣库存
+    if (stockKey ~= nil) then
+        redis.call('incrby', stockKey, -1)
+    end
+    -- 8.下单
+    if (useBitmap) then
+        redis.call('setbit', buyersKey, userId, 1)
+    else
+        redis.call('sadd', orderKey, userId)
+    end
+    -- 9.发送消息到队列中
+    redis.call('xadd', 'stream.orders', '*', 'o', message)
+    -- 10.订单状态：排队中，key包含用户id，只能查询自己的订单
+    redis.call('set', 'seckill:order:status:' .. userId .. ':' .. orderId, '0', 'EX', statusTtl)
+    return 0
 end
 
--- 3.4. 扣库存
-redis.call('incrby',stockKey,-1)
--- 3.5. 下单
-redis.call('sadd',orderKey,userId)
--- 3.6 发送消息到队列中
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+local results = {}
+for i = 0, count - 1 do
+    local base = 6 + i * 4
+    results[i + 1] = buy(ARGV[base + 1], ARGV[base + 2], ARGV[base + 3] == '1', ARGV[base + 4])
+end
+return results
@@ -0,0 +1,51 @@
+-- 分段库存秒杀，一次调用只访问同一个分段的key（key带相同的hash tag {优惠券id:分段号}，集群中位于同一个slot）
+-- KEYS[1]: 分段库存 seckill:stock:{voucherId:i}
+-- KEYS[2]: 分段已购用户集合 seckill:order{voucherId:i}，用户只记录在自己所属的分段（userId % 分段数）
+-- KEYS[3]: 分段内的秒杀起止时间副本 seckill:window:{voucherId:i}
+-- ARGV[1]: 操作
+--   buy  在用户所属分段下单：校验时间和一人一单，记录已购用户，扣减本分段库存。
+--        返回 0成功 1本分段库存不足（已购用户已记录，调用方需要从其他分段take或undo） 2重复下单 3未开始 4已结束
+--   take 从其他分段扣减库存，返回 0成功 1库存不足
+--   undo 所有分段都没有库存，撤销buy记录的已购用户
+-- ARGV[2]: 用户id
+-- ARGV[3]: 当前时间（毫秒），buy时必填
+local op = ARGV[1]
+local userId = ARGV[2]
+
+local function take()
+    if ((tonumber(redis.call('get', KEYS[1])) or 0) <= 0) then
+        return 1
+    end
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+
+if (op == 'take') then
+    return take()
+end
+if (op == 'undo') then
+    redis.call('srem', KEYS[2], userId)
+    return 0
+end
+
+local now = tonumber(ARGV[3])
+if (op ~= 'buy' or now == nil) then
+    return redis.error_reply('invalid seckill arguments')
+end
+-- 1.判断是否在秒杀时间内，不存在时视为已结束
+local window = redis.call('hmget', KEYS[3], 'begin', 'end')
+if (not window[1] or not window[2]) then
+    return 4
+end
+if (now < tonumber(window[1])) then
+    return 3
+end
+if (now > tonumber(window[2])) then
+    return 4
+end
+-- 2.一人一单，先记录已购用户，本分段没有库存时由调用方从其他分段扣减
+if (redis.call('sadd', KEYS[2], userId) == 0) then
+    return 2
+end
+-- 3.扣减本分段库存
+return take()
@@ -0,0 +1,21 @@
+-- 租用/归还秒杀库存
+-- ARGV[1]: 优惠券id
+-- ARGV[2]: 租用数量，负数表示归还
+local voucherId = ARGV[1]
+local count = tonumber(ARGV[2])
+
+local stockKey = 'seckill:stock:' .. voucherId
+
+-- 1.归还库存
+if (count < 0) then
+    redis.call('incrby', stockKey, -count)
+    return count
+end
+
+-- 2.租用库存，最多租用剩余库存
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local leased = math.max(0, math.min(stock, count))
+if (leased > 0) then
+    redis.call('incrby', stockKey, -leased)
+end
+return leased
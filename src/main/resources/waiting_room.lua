@@ -0,0 +1,24 @@
+-- 从等待队列头部放行一批用户
+-- ARGV[1]: 优惠券id
+-- ARGV[2]: 本次放行人数
+-- ARGV[3]: 放行凭证有效期（秒）
+local voucherId = ARGV[1]
+local count = tonumber(ARGV[2])
+local ttl = tonumber(ARGV[3])
+
+local queueKey = 'seckill:queue:' .. voucherId
+local passKey = 'seckill:pass:' .. voucherId .. ':'
+
+-- 1.取出队首用户
+local users = redis.call('zrange', queueKey, 0, count - 1)
+if (#users == 0) then
+    -- 队列已空，不再调度
+    redis.call('srem', 'seckill:queues', voucherId)
+    return 0
+end
+redis.call('zremrangebyrank', queueKey, 0, #users - 1)
+-- 2.发放放行凭证
+for i, userId in ipairs(users) do
+    redis.call('set', passKey .. userId, '1', 'EX', ttl)
+end
+return #users
@@ -0,0 +1,24 @@
+-- 领取排队号，重复排队不会改变位置
+-- ARGV[1]: 优惠券id
+-- ARGV[2]: 用户id
+-- ARGV[3]: 当前时间（毫秒）
+-- 返回：-1秒杀券不存在或已结束，-2已放行，否则为排队位置（从0开始）
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local now = tonumber(ARGV[3])
+
+local queueKey = 'seckill:queue:' .. voucherId
+
+-- 1.秒杀起止时间由预热写入，不存在说明优惠券不存在、尚未预热或已过期，不创建排队状态
+local endTime = redis.call('hget', 'seckill:window:' .. voucherId, 'end')
+if (not endTime or now > tonumber(endTime)) then
+    return -1
+end
+-- 2.已放行的用户不再排队
+if (redis.call('exists', 'seckill:pass:' .. voucherId .. ':' .. userId) == 1) then
+    return -2
+end
+-- 3.排队，已在队列中时保持原来的位置
+redis.call('zadd', queueKey, 'NX', now, userId)
+redis.call('sadd', 'seckill:queues', voucherId)
+return redis.call('zrank', queueKey, userId)
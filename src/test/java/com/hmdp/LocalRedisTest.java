@@ -0,0 +1,52 @@
+package com.hmdp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 直接连接本地redis-server的测试基类（-Dbench.redis.host/port 可覆盖），不启动Spring容器，
+ * 使用独立的db避免污染业务数据，本地没有redis时跳过。
+ * 吞吐、内存对比等只输出数据的用例需要显式开启：-Dbench.timing=true
+ */
+abstract class LocalRedisTest {
+
+    protected StringRedisTemplate stringRedisTemplate;
+
+    private LettuceConnectionFactory factory;
+
+    @BeforeEach
+    void connect() {
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration(
+                System.getProperty("bench.redis.host", "127.0.0.1"),
+                Integer.getInteger("bench.redis.port", 6379));
+        config.setDatabase(15);
+        factory = new LettuceConnectionFactory(config);
+        factory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(factory);
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) c -> c.ping());
+        } catch (Exception e) {
+            stringRedisTemplate = null;
+            Assumptions.assumeTrue(false, "本地redis-server不可用: " + e.getMessage());
+        }
+    }
+
+    @AfterEach
+    void disconnect() {
+        if (stringRedisTemplate != null) {
+            cleanUp();
+        }
+        factory.destroy();
+    }
+
+    /**
+     * 删除用例写入的key，连接可用时在每个用例结束后调用
+     */
+    protected void cleanUp() {
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderMessageCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OrderMessageCodecTest {
+
+    @Test
+    void roundTrip() {
+        long orderId = Long.MAX_VALUE - 7;
+        String packed = OrderMessageCodec.encode(1010L, 2L, orderId);
+        VoucherOrder voucherOrder = OrderMessageCodec.decode(Collections.singletonMap(OrderMessageCodec.FIELD, packed));
+        assertEquals(1010L, voucherOrder.getUserId());
+        assertEquals(2L, voucherOrder.getVoucherId());
+        assertEquals(orderId, voucherOrder.getId());
+    }
+
+    @Test
+    void decodeLegacyMessage() {
+        Map<String, String> values = new HashMap<>();
+        values.put("userId", "1010");
+        values.put("voucherId", "2");
+        values.put("id", "4611686018427387904");
+        VoucherOrder voucherOrder = OrderMessageCodec.decode(values);
+        assertEquals(1010L, voucherOrder.getUserId());
+        assertEquals(2L, voucherOrder.getVoucherId());
+        assertEquals(4611686018427387904L, voucherOrder.getId());
+    }
+
+    @Test
+    void rejectUnknownVersion() {
+        assertThrows(IllegalArgumentException.class,
+                () -> OrderMessageCodec.decode(Collections.singletonMap(OrderMessageCodec.FIELD, "9a,b,c")));
+    }
+}
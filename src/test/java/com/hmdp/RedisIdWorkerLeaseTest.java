@@ -0,0 +1,84 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 逐个INCR与号段租用两种模式的RedisIdWorker：id全局唯一且每个线程内单调递增
+ */
+class RedisIdWorkerLeaseTest extends LocalRedisTest {
+
+    private static final int THREADS = 64;
+    private static final String KEY_PREFIX = "bench-order";
+
+    @Test
+    void incrIdsAreUniqueAndMonotonic() throws InterruptedException {
+        run(0, 200);
+    }
+
+    @Test
+    void leasedIdsAreUniqueAndMonotonic() throws InterruptedException {
+        // 号段小于每个线程的id数，覆盖并发续租
+        run(100, 200);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench.timing", matches = "true")
+    void compareIncrAndLeasedSegment() throws InterruptedException {
+        long incrOps = run(0, 5000);
+        long leasedOps = run(1000, 5000);
+        System.out.println("incr = " + incrOps + " ids/s, lease = " + leasedOps + " ids/s");
+    }
+
+    /**
+     * 校验全局唯一，且每个线程拿到的id单调递增
+     * @return 每秒生成的id数
+     */
+    private long run(int leaseSize, int idsPerThread) throws InterruptedException {
+        RedisIdWorker redisIdWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(redisIdWorker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(redisIdWorker, "leaseSize", leaseSize);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Set<Integer> unordered = ConcurrentHashMap.newKeySet();
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch countDownLatch = new CountDownLatch(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            executorService.submit(() -> {
+                long last = 0;
+                for (int i = 0; i < idsPerThread; i++) {
+                    long id = redisIdWorker.nextId(KEY_PREFIX);
+                    ids.add(id);
+                    if (id <= last) {
+                        unordered.add(thread);
+                    }
+                    last = id;
+                }
+                countDownLatch.countDown();
+            });
+        }
+        countDownLatch.await();
+        long elapsed = System.nanoTime() - begin;
+        executorService.shutdown();
+        assertEquals(THREADS * idsPerThread, ids.size());
+        assertTrue(unordered.isEmpty(), "id not monotonic in threads " + unordered);
+        return (long) THREADS * idsPerThread * 1_000_000_000L / elapsed;
+    }
+
+    @Override
+    protected void cleanUp() {
+        stringRedisTemplate.delete(stringRedisTemplate.keys("icr:" + KEY_PREFIX + ":*"));
+    }
+}
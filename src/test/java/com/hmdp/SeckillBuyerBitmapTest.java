@@ -0,0 +1,130 @@
+package com.hmdp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYERS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 已购用户集合与位图两种去重方式：每个用户只能下单一次，超过位图上限的用户回退到集合
+ */
+class SeckillBuyerBitmapTest extends SeckillLuaTest {
+
+    private static final int THREADS = 64;
+    private static final long VOUCHER_ID = 990002L;
+
+    @BeforeEach
+    void setUp() {
+        openWindow(VOUCHER_ID);
+    }
+
+    @Test
+    void setBuyersCannotBuyTwice() throws InterruptedException {
+        run(2000, 0);
+    }
+
+    @Test
+    void bitmapBuyersCannotBuyTwice() throws InterruptedException {
+        run(2000, 2000);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench.timing", matches = "true")
+    void compareSetAndBitmapBuyers() throws InterruptedException {
+        int users = 200000;
+        // 集合模式
+        long setOps = run(users, 0);
+        long setBytes = memoryUsage(SECKILL_ORDER_KEY + VOUCHER_ID);
+        cleanUp();
+        openWindow(VOUCHER_ID);
+
+        // 位图模式，用户id连续
+        long bitmapOps = run(users, users);
+        long bitmapBytes = memoryUsage(SECKILL_BUYERS_KEY + VOUCHER_ID);
+
+        System.out.println("set = " + setOps + " ops/s, " + setBytes + " bytes; bitmap = "
+                + bitmapOps + " ops/s, " + bitmapBytes + " bytes");
+    }
+
+    @Test
+    void sparseUserIdFallsBackToSet() {
+        long bitmapMax = 2000;
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "10");
+        // 超过位图上限的用户写入集合，且同样不能重复下单
+        assertEquals(0, seckill(bitmapMax + 1, bitmapMax));
+        assertEquals(2, seckill(bitmapMax + 1, bitmapMax));
+        assertEquals(Boolean.TRUE, stringRedisTemplate.opsForSet()
+                .isMember(SECKILL_ORDER_KEY + VOUCHER_ID, String.valueOf(bitmapMax + 1)));
+        // 开启位图前写入集合的用户，开启后仍不能重复下单
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + VOUCHER_ID, "7");
+        assertEquals(2, seckill(7L, bitmapMax));
+        assertEquals(0, seckill(8L, bitmapMax));
+        assertEquals(Boolean.TRUE, stringRedisTemplate.opsForValue().getBit(SECKILL_BUYERS_KEY + VOUCHER_ID, 8L));
+    }
+
+    /**
+     * 每个用户下单两次，第二次必须返回重复下单
+     * @return 每秒执行的脚本次数
+     */
+    private long run(int users, long bitmapMax) throws InterruptedException {
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(users));
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch countDownLatch = new CountDownLatch(THREADS);
+        AtomicLong userIds = new AtomicLong();
+        LongAdder success = new LongAdder();
+        LongAdder duplicated = new LongAdder();
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executorService.submit(() -> {
+                long userId;
+                while ((userId = userIds.incrementAndGet()) <= users) {
+                    if (seckill(userId, bitmapMax) == 0) {
+                        success.increment();
+                    }
+                    if (seckill(userId, bitmapMax) == 2) {
+                        duplicated.increment();
+                    }
+                }
+                countDownLatch.countDown();
+            });
+        }
+        countDownLatch.await();
+        long elapsed = System.nanoTime() - begin;
+        executorService.shutdown();
+        assertEquals(users, success.sum());
+        assertEquals(users, duplicated.sum());
+        return users * 2L * 1_000_000_000L / elapsed;
+    }
+
+    private long seckill(long userId, long bitmapMax) {
+        return seckill(VOUCHER_ID, userId, bitmapMax);
+    }
+
+    private long memoryUsage(String key) {
+        Long bytes = stringRedisTemplate.execute((RedisCallback<Long>) c ->
+                (Long) c.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+        return bytes == null ? 0 : bytes;
+    }
+
+    @Override
+    protected void cleanUp() {
+        stringRedisTemplate.delete(SECKILL_STOCK_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_ORDER_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_BUYERS_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_WINDOW_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete("stream.orders");
+    }
+}
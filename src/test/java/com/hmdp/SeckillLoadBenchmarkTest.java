@@ -0,0 +1,288 @@
+package com.hmdp;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 替代 秒杀抢购.jmx 的压测：启动完整应用（随机端口），连接application.yaml中的本地redis-server和MySQL
+ * （可用 -Dspring.datasource.url / -Dspring.redis.host 等覆盖），按jmx中的场景发起HTTP请求，
+ * 输出吞吐和延迟分位数，并校验不超卖、不重复下单、Redis与MySQL最终一致。
+ * 需要显式开启：mvn test -Dtest=SeckillLoadBenchmarkTest -Dbench.load=true
+ */
+@EnabledIfSystemProperty(named = "bench.load", matches = "true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadBenchmarkTest {
+
+    private static final int STOCK = Integer.getInteger("bench.stock", 100);
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    private final List<Long> voucherIds = new ArrayList<>();
+    private final List<String> tokens = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (Long voucherId : voucherIds) {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+            voucherService.removeById(voucherId);
+            stringRedisTemplate.delete(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_WINDOW_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_BUYERS_KEY + voucherId));
+        }
+        for (String token : tokens) {
+            stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        }
+    }
+
+    /**
+     * jmx线程组1：1000线程、5秒内启动完，各请求一次 /shop/1
+     */
+    @Test
+    void queryShop() throws InterruptedException {
+        Report report = run("GET /shop/1", 1000, 5000, i -> request("GET", "/shop/1", null));
+        report.print();
+        assertEquals(1000, report.ok.sum());
+    }
+
+    /**
+     * jmx线程组2：200线程同一用户同时秒杀，最多只能成功一单
+     */
+    @Test
+    void seckillSameUser() throws InterruptedException {
+        Long voucherId = createSeckillVoucher(STOCK);
+        String token = login(1L);
+        Report report = run("POST /voucher-order/seckill/{id} x200 同一用户", 200, 0,
+                i -> request("POST", "/voucher-order/seckill/" + voucherId, token));
+        report.print();
+        assertTrue(report.success.sum() <= 1, "同一用户重复下单");
+        verify(voucherId, report.success.sum());
+    }
+
+    /**
+     * jmx线程组3：1000线程不同用户同时秒杀，成功数等于库存
+     */
+    @Test
+    void seckillManyUsers() throws InterruptedException {
+        Long voucherId = createSeckillVoucher(STOCK);
+        String[] userTokens = new String[1000];
+        for (int i = 0; i < userTokens.length; i++) {
+            userTokens[i] = login(i + 1L);
+        }
+        Report report = run("POST /voucher-order/seckill/{id} x1000 不同用户", 1000, 0,
+                i -> request("POST", "/voucher-order/seckill/" + voucherId, userTokens[i]));
+        report.print();
+        assertEquals(Math.min(STOCK, 1000), report.success.sum(), "成功数与库存不一致");
+        verify(voucherId, report.success.sum());
+    }
+
+    /**
+     * 等待订单全部落库后校验：订单数等于成功数、不超卖、无重复下单、Redis与MySQL无漂移
+     */
+    private void verify(Long voucherId, long success) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        long orders = 0;
+        long begin = System.currentTimeMillis();
+        while (System.currentTimeMillis() < deadline) {
+            orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            if (orders >= success) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("落库耗时 " + (System.currentTimeMillis() - begin) + " ms");
+        assertEquals(success, orders, "落库订单数与成功数不一致");
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertEquals(STOCK - success, seckillVoucher.getStock().longValue(), "数据库库存不一致");
+        assertTrue(seckillVoucher.getStock() >= 0, "数据库超卖");
+        List<VoucherOrder> duplicated = voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).groupBy("user_id").having("count(*) > 1").list();
+        assertTrue(duplicated.isEmpty(), "存在重复下单");
+        Map<String, Object> reconcile = voucherService.reconcileSeckillVoucher(voucherId, false);
+        System.out.println("对账: " + reconcile);
+        assertTrue(((Number) reconcile.get("redisStock")).longValue() >= 0, "Redis超卖");
+        assertEquals(0L, ((Number) reconcile.get("drift")).longValue(), "Redis与MySQL不一致");
+    }
+
+    private Long createSeckillVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        voucherIds.add(voucher.getId());
+        return voucher.getId();
+    }
+
+    /**
+     * 直接写入登录态，压测用户id取高位段避免与真实用户冲突
+     */
+    private String login(long n) {
+        String token = IdUtil.simpleUUID();
+        Map<String, String> user = new HashMap<>();
+        user.put("id", String.valueOf(900_000_000L + n));
+        user.put("nickName", "bench" + n);
+        user.put("icon", "");
+        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, user);
+        stringRedisTemplate.expire(LOGIN_USER_KEY + token, 1, TimeUnit.HOURS);
+        tokens.add(token);
+        return token;
+    }
+
+    private Report run(String name, int threads, long rampMillis, Request request) throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        Report report = new Report(name, threads);
+        for (int t = 0; t < threads; t++) {
+            int i = t;
+            executorService.submit(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    if (rampMillis > 0) {
+                        Thread.sleep(rampMillis * i / threads);
+                    }
+                    long begin = System.nanoTime();
+                    Response response = request.send(i);
+                    report.latencies[i] = System.nanoTime() - begin;
+                    if (response.status == 200) {
+                        report.ok.increment();
+                        if (JSONUtil.parseObj(response.body).getBool("success", false)) {
+                            report.success.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    report.errors.increment();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        report.elapsedNanos = System.nanoTime() - begin;
+        executorService.shutdown();
+        return report;
+    }
+
+    private Response request(String method, String path, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty("authorization", token);
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            in.close();
+        }
+        return new Response(status, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        Response send(int i) throws IOException;
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static class Report {
+        private final String name;
+        private final long[] latencies;
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder success = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private long elapsedNanos;
+
+        Report(String name, int requests) {
+            this.name = name;
+            this.latencies = new long[requests];
+        }
+
+        void print() {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            System.out.printf("%s: 请求 %d, 2xx %d, success %d, 异常 %d, 吞吐 %.1f req/s, "
+                            + "p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    name, sorted.length, ok.sum(), success.sum(), errors.sum(),
+                    sorted.length * 1e9 / elapsedNanos,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+}
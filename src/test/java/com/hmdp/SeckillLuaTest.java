@@ -0,0 +1,59 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderMessageCodec;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 直接执行seckill.lua的测试基类：写入秒杀起止时间，按单券秒杀的参数调用脚本
+ */
+abstract class SeckillLuaTest extends LocalRedisTest {
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * 写入秒杀起止时间
+     */
+    protected void saveWindow(long voucherId, long begin, long end) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(begin));
+        window.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + voucherId, window);
+    }
+
+    /**
+     * 写入进行中的秒杀起止时间
+     */
+    protected void openWindow(long voucherId) {
+        long now = System.currentTimeMillis();
+        saveWindow(voucherId, now - 60000, now + 60000);
+    }
+
+    /**
+     * 以当前时间秒杀，订单id与用户id相同
+     * @return seckill.lua的结果码
+     */
+    protected int seckill(long voucherId, long userId, long bitmapMax) {
+        return seckill(voucherId, userId, System.currentTimeMillis(), bitmapMax);
+    }
+
+    protected int seckill(long voucherId, long userId, long now, long bitmapMax) {
+        List<?> results = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                String.valueOf(userId), String.valueOf(now), "0", "60", String.valueOf(bitmapMax), "1",
+                String.valueOf(voucherId), String.valueOf(userId), "0",
+                OrderMessageCodec.encode(userId, voucherId, userId));
+        return ((Number) results.get(0)).intValue();
+    }
+}
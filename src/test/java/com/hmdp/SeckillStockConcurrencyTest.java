@@ -0,0 +1,60 @@
+package com.hmdp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 多线程并发执行seckill.lua，校验库存不超卖且恰好卖完
+ */
+class SeckillStockConcurrencyTest extends SeckillLuaTest {
+
+    private static final int THREADS = 32;
+    private static final int REQUESTS_PER_THREAD = 200;
+    private static final int STOCK = THREADS * REQUESTS_PER_THREAD / 2;
+    private static final long VOUCHER_ID = 990001L;
+
+    /**
+     * 每个请求使用不同用户，请求数是库存的两倍
+     */
+    @Test
+    void concurrentBuyersNeverOversell() throws InterruptedException {
+        openWindow(VOUCHER_ID);
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(STOCK));
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch countDownLatch = new CountDownLatch(THREADS);
+        AtomicLong userIds = new AtomicLong();
+        LongAdder success = new LongAdder();
+        for (int t = 0; t < THREADS; t++) {
+            executorService.submit(() -> {
+                for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                    long userId = userIds.incrementAndGet();
+                    if (seckill(VOUCHER_ID, userId, 0) == 0) {
+                        success.increment();
+                    }
+                }
+                countDownLatch.countDown();
+            });
+        }
+        countDownLatch.await();
+        executorService.shutdown();
+        assertEquals(STOCK, success.sum());
+        assertEquals("0", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    @Override
+    protected void cleanUp() {
+        stringRedisTemplate.delete(SECKILL_STOCK_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_WINDOW_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete("seckill:order" + VOUCHER_ID);
+        stringRedisTemplate.delete("stream.orders");
+    }
+}
@@ -0,0 +1,144 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderMessageCodec;
+import com.hmdp.utils.SegmentedStock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 分段库存：跨分段扣减时不超卖、一人一单仍然有效；单key与分段模式的吞吐对比
+ */
+class SeckillStockSegmentTest extends SeckillLuaTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int THREADS = 64;
+    private static final long VOUCHER_ID = 990004L;
+
+    private SegmentedStock segmentedStock;
+
+    @BeforeEach
+    void setUp() {
+        segmentedStock = new SegmentedStock();
+        ReflectionTestUtils.setField(segmentedStock, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(segmentedStock, "segments", SEGMENTS);
+        long now = System.currentTimeMillis();
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(now - 60000));
+        window.put("end", String.valueOf(now + 60000));
+        segmentedStock.saveWindow(VOUCHER_ID, window, new Date(now + 120000));
+        openWindow(VOUCHER_ID);
+    }
+
+    /**
+     * 所有用户属于同一个分段，所属分段卖完后从其他分段扣减
+     */
+    @Test
+    void fallsOverToOtherSegmentsAndKeepsOneOrderPerUser() {
+        segmentedStock.save(VOUCHER_ID, 10, true);
+        int success = 0;
+        for (long userId = SEGMENTS; userId <= SEGMENTS * 30L; userId += SEGMENTS) {
+            if (seckillSegmented(userId) == 0) {
+                success++;
+            }
+        }
+        assertEquals(10, success);
+        assertEquals(0L, (long) segmentedStock.stock(VOUCHER_ID));
+        // 没抢到的用户已撤销，所属分段只留下成功的用户
+        assertEquals(10L, (long) segmentedStock.buyers(VOUCHER_ID));
+        // 从其他分段扣减库存的用户同样不能重复下单
+        assertEquals(2, seckillSegmented(SEGMENTS * 10L));
+        // 归还到所属分段后，没抢到的用户可以再次下单
+        segmentedStock.giveBack(VOUCHER_ID, SEGMENTS * 11L);
+        assertEquals(0, seckillSegmented(SEGMENTS * 11L));
+    }
+
+    @Test
+    void rejectsOutsideWindow() {
+        segmentedStock.save(VOUCHER_ID, 10, true);
+        long now = System.currentTimeMillis();
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(now + 60000));
+        window.put("end", String.valueOf(now + 120000));
+        segmentedStock.saveWindow(VOUCHER_ID, window, new Date(now + 180000));
+        assertEquals(3, seckillSegmented(1L));
+        assertEquals(0L, (long) segmentedStock.buyers(VOUCHER_ID));
+    }
+
+    @Test
+    void concurrentBuyersNeverOversell() throws InterruptedException {
+        int stock = THREADS * 50;
+        segmentedStock.save(VOUCHER_ID, stock, true);
+        assertEquals(stock, run(true, 100));
+        assertEquals(0L, (long) segmentedStock.stock(VOUCHER_ID));
+        assertEquals(stock, (long) segmentedStock.buyers(VOUCHER_ID));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "bench.timing", matches = "true")
+    void compareSingleKeyAndSegmentedStock() throws InterruptedException {
+        int requests = 2000;
+        int stock = THREADS * requests / 2;
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(stock));
+        long begin = System.nanoTime();
+        assertEquals(stock, run(false, requests));
+        long singleOps = (long) THREADS * requests * 1_000_000_000L / (System.nanoTime() - begin);
+
+        segmentedStock.save(VOUCHER_ID, stock, true);
+        begin = System.nanoTime();
+        assertEquals(stock, run(true, requests));
+        long segmentedOps = (long) THREADS * requests * 1_000_000_000L / (System.nanoTime() - begin);
+        System.out.println("single-key = " + singleOps + " ops/s, segmented(" + SEGMENTS + ") = " + segmentedOps + " ops/s");
+    }
+
+    /**
+     * 每个请求使用不同用户
+     * @return 成功下单数
+     */
+    private long run(boolean segmented, int requestsPerThread) throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch countDownLatch = new CountDownLatch(THREADS);
+        AtomicLong userIds = new AtomicLong();
+        LongAdder success = new LongAdder();
+        for (int t = 0; t < THREADS; t++) {
+            executorService.submit(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    long userId = userIds.incrementAndGet();
+                    int r = segmented ? seckillSegmented(userId) : seckill(VOUCHER_ID, userId, 0);
+                    if (r == 0) {
+                        success.increment();
+                    }
+                }
+                countDownLatch.countDown();
+            });
+        }
+        countDownLatch.await();
+        executorService.shutdown();
+        return success.sum();
+    }
+
+    private int seckillSegmented(long userId) {
+        return segmentedStock.seckill(VOUCHER_ID, userId, userId,
+                OrderMessageCodec.encode(userId, VOUCHER_ID, userId), 60, false);
+    }
+
+    @Override
+    protected void cleanUp() {
+        stringRedisTemplate.delete(stringRedisTemplate.keys("seckill:*" + VOUCHER_ID + "*"));
+        stringRedisTemplate.delete(stringRedisTemplate.keys("seckill:order:status:*"));
+        stringRedisTemplate.delete("stream.orders");
+    }
+}
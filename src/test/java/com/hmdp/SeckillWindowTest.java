@@ -0,0 +1,63 @@
+package com.hmdp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * seckill.lua按秒杀起止时间放行：未开始、已结束、起止时间不存在时都不扣减库存
+ */
+class SeckillWindowTest extends SeckillLuaTest {
+
+    private static final long VOUCHER_ID = 990003L;
+    private static final long BEGIN = 1_000_000L;
+    private static final long END = 2_000_000L;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "10");
+    }
+
+    @Test
+    void beforeBeginReturnsNotStarted() {
+        saveWindow(VOUCHER_ID, BEGIN, END);
+        assertEquals(3, seckill(VOUCHER_ID, 1L, BEGIN - 1, 0));
+        assertStockUntouched();
+    }
+
+    @Test
+    void afterEndReturnsEnded() {
+        saveWindow(VOUCHER_ID, BEGIN, END);
+        assertEquals(4, seckill(VOUCHER_ID, 1L, END + 1, 0));
+        assertStockUntouched();
+    }
+
+    @Test
+    void missingWindowReturnsEnded() {
+        assertEquals(4, seckill(VOUCHER_ID, 1L, BEGIN, 0));
+        assertStockUntouched();
+    }
+
+    @Test
+    void withinWindowSucceeds() {
+        saveWindow(VOUCHER_ID, BEGIN, END);
+        assertEquals(0, seckill(VOUCHER_ID, 1L, BEGIN, 0));
+        assertEquals("9", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    private void assertStockUntouched() {
+        assertEquals("10", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    @Override
+    protected void cleanUp() {
+        stringRedisTemplate.delete(SECKILL_STOCK_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_WINDOW_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_ORDER_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete("stream.orders");
+    }
+}